@@ -0,0 +1,185 @@
+package nlp.assignments;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Bootstrap confidence intervals and paired significance tests for perplexity and word error rate, so that a
+ * difference between two models can be told apart from the luck of the test set.
+ *
+ * Both metrics are a ratio of sums over test items: log probability over symbols for perplexity, edit distance over
+ * reference words for word error rate. Each model's per-item terms are scored once into Scores, and every replicate
+ * then resamples items with replacement and re-adds their cached terms, so thousands of replicates cost no more
+ * scoring than one evaluation. Replicates run in parallel, each with its own generator seeded from the bootstrap's
+ * seed and the replicate number, so results do not depend on the number of cores. A paired test resamples the same
+ * items for both models.
+ */
+public class Bootstrap {
+
+    public enum Metric {
+        PERPLEXITY, WORD_ERROR_RATE;
+
+        /**
+         * The metric from the sums of its per-item terms
+         */
+        double of(double numerator, double denominator) {
+            return this == PERPLEXITY ? Math.pow(0.5, numerator / denominator) : numerator / denominator;
+        }
+    }
+
+    /**
+     * A model's per-item terms of a metric: for perplexity, each sentence's log (base 2) probability and symbol count;
+     * for word error rate, each N-best list's edit distance and reference length
+     */
+    public static class Scores {
+        final Metric metric;
+        final double[] numerators, denominators;
+
+        public Scores(Metric metric, double[] numerators, double[] denominators) {
+            if (numerators.length != denominators.length)
+                throw new IllegalArgumentException("Expected as many numerators as denominators");
+            this.metric = metric;
+            this.numerators = numerators;
+            this.denominators = denominators;
+        }
+
+        public int size() {
+            return numerators.length;
+        }
+
+        /**
+         * The metric over every item, as calculatePerplexity or calculateWordErrorRate gives it
+         */
+        public double value() {
+            double numerator = 0.0, denominator = 0.0;
+            for (int i = 0; i < numerators.length; i++) {
+                numerator += numerators[i];
+                denominator += denominators[i];
+            }
+            return metric.of(numerator, denominator);
+        }
+    }
+
+    /**
+     * A point estimate with the bounds of a confidence interval around it
+     */
+    public static class Interval {
+        public final double estimate, lower, upper;
+
+        Interval(double estimate, double lower, double upper) {
+            this.estimate = estimate;
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%.6g [%.6g, %.6g]", estimate, lower, upper);
+        }
+    }
+
+    /**
+     * The difference of a metric between two models (the first's minus the second's), its confidence interval, and
+     * the two-sided p-value of there being no difference: twice the share of replicates where the difference is
+     * zero or of the other sign to the one observed
+     */
+    public static class PairedTest {
+        public final Interval difference;
+        public final double pValue;
+
+        PairedTest(Interval difference, double pValue) {
+            this.difference = difference;
+            this.pValue = pValue;
+        }
+
+        @Override
+        public String toString() {
+            return difference + String.format(Locale.ROOT, " p = %.4f", pValue);
+        }
+    }
+
+    private final int replicates;
+    private final long seed;
+    private final double confidence;
+
+    /**
+     * @param replicates how many resamples to draw
+     * @param seed the seed every replicate's generator is derived from
+     * @param confidence the coverage of the intervals, e.g. 0.95
+     */
+    public Bootstrap(int replicates, long seed, double confidence) {
+        if (replicates < 1) throw new IllegalArgumentException("Need at least one replicate");
+        if (confidence <= 0 || confidence >= 1) throw new IllegalArgumentException("Confidence must be in (0, 1)");
+        this.replicates = replicates;
+        this.seed = seed;
+        this.confidence = confidence;
+    }
+
+    public Bootstrap(int replicates) {
+        this(replicates, 1, 0.95);
+    }
+
+    public int getReplicates() {
+        return replicates;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * A percentile interval for a model's metric
+     */
+    public Interval confidenceInterval(Scores scores) {
+        int n = scores.size();
+        double[] values = IntStream.range(0, replicates).parallel().mapToDouble(r -> {
+            SplittableRandom random = new SplittableRandom(seed + r);
+            double numerator = 0.0, denominator = 0.0;
+            for (int k = 0; k < n; k++) {
+                int i = random.nextInt(n);
+                numerator += scores.numerators[i];
+                denominator += scores.denominators[i];
+            }
+            return scores.metric.of(numerator, denominator);
+        }).toArray();
+        return interval(scores.value(), values);
+    }
+
+    /**
+     * A paired test of two models' metric over the same items, each replicate resampling the same items for both
+     */
+    public PairedTest compare(Scores first, Scores second) {
+        if (first.metric != second.metric || first.size() != second.size())
+            throw new IllegalArgumentException("Can only compare scores of the same metric over the same items");
+        int n = first.size();
+        double[] differences = IntStream.range(0, replicates).parallel().mapToDouble(r -> {
+            SplittableRandom random = new SplittableRandom(seed + r);
+            double firstNumerator = 0.0, firstDenominator = 0.0, secondNumerator = 0.0, secondDenominator = 0.0;
+            for (int k = 0; k < n; k++) {
+                int i = random.nextInt(n);
+                firstNumerator += first.numerators[i];
+                firstDenominator += first.denominators[i];
+                secondNumerator += second.numerators[i];
+                secondDenominator += second.denominators[i];
+            }
+            return first.metric.of(firstNumerator, firstDenominator)
+                    - second.metric.of(secondNumerator, secondDenominator);
+        }).toArray();
+
+        double observed = first.value() - second.value();
+        int opposite = 0;
+        for (double difference : differences)
+            if (observed >= 0 ? difference <= 0 : difference >= 0) opposite++;
+        return new PairedTest(interval(observed, differences), Math.min(1.0, 2.0 * opposite / replicates));
+    }
+
+    private Interval interval(double estimate, double[] values) {
+        Arrays.sort(values);
+        double tail = (1 - confidence) / 2;
+        int lower = (int) Math.floor(tail * values.length);
+        int upper = (int) Math.ceil((1 - tail) * values.length) - 1;
+        return new Interval(estimate, values[Math.max(0, lower)], values[Math.min(values.length - 1, upper)]);
+    }
+}
@@ -0,0 +1,105 @@
+package nlp.assignments;
+
+import nlp.langmodel.LanguageModel;
+import nlp.util.Counter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A class-based language model (Brown et al., 1992) interpolated with a word model. Words are mapped to classes
+ * (see WordClusterer) and an NGramLanguageModel is trained over the class sequences, so its high-order tables are
+ * indexed by a few hundred classes rather than the whole vocabulary, and are far smaller and denser than a word
+ * model's of the same order. A word is then predicted as
+ *
+ *   P(w | h) = wordWeight P_word(w | h) + (1 - wordWeight) P_class(c(w) | c(h)) P(w | c(w))
+ *
+ * where P(w | c) is the word's share of its class's training tokens. Words without a class (unknown words) are left
+ * to the word model, which can be of a lower order than the class model.
+ */
+public class ClassLanguageModel implements LanguageModel {
+
+    private final Map<String, Integer> classes;
+    private final NGramLanguageModel wordModel, classModel;
+    private final double wordWeight;
+
+    private final Counter<String> wordCounts = new Counter<>();
+    private final double[] classCounts;
+
+    /**
+     * @param classes each training word's class, from 0 up, as made by WordClusterer.cluster
+     * @param n the order of the class model
+     * @param classLambdas the class model's interpolation weights, highest order first
+     */
+    public ClassLanguageModel(Collection<List<String>> trainingSentences, Map<String, Integer> classes, int n,
+                              double[] classLambdas, NGramLanguageModel wordModel, double wordWeight) {
+        this.classes = classes;
+        this.wordModel = wordModel;
+        this.wordWeight = wordWeight;
+
+        int classCount = 0;
+        for (int c : classes.values()) classCount = Math.max(classCount, c + 1);
+        classCounts = new double[classCount];
+
+        List<List<String>> classSentences = new ArrayList<>();
+        for (List<String> sentence : trainingSentences) {
+            for (String word : sentence) {
+                wordCounts.incrementCount(word, 1.0);
+                classCounts[classes.get(word)]++;
+            }
+            classSentences.add(toClasses(sentence));
+        }
+        classModel = new NGramLanguageModel(n, classSentences, classLambdas);
+    }
+
+    private static String classToken(int c) {
+        return "C" + c;
+    }
+
+    private List<String> toClasses(List<String> sentence) {
+        List<String> classSentence = new ArrayList<>(sentence.size());
+        for (String word : sentence) {
+            Integer c = classes.get(word);
+            classSentence.add(c == null ? NGramLanguageModel.unknown : classToken(c));
+        }
+        return classSentence;
+    }
+
+    @Override
+    public double getSentenceProbability(List<String> sentence) {
+        List<String> classSentence = toClasses(sentence);
+        double result = 1.0;
+
+        for (int i = 0; i <= sentence.size(); i++) {
+            List<String> history = sentence.subList(0, i), classHistory = classSentence.subList(0, i);
+            String word = i < sentence.size() ? sentence.get(i) : NGramLanguageModel.stop;
+
+            double classProbability;
+            if (i == sentence.size()) {
+                //the stop symbol is a class of its own
+                classProbability = classModel.getWordProbability(classHistory, NGramLanguageModel.stop);
+            } else {
+                Integer c = classes.get(word);
+                classProbability = c == null ? 0.0 : classModel.getWordProbability(classHistory, classToken(c))
+                        * wordCounts.getCount(word) / classCounts[c];
+            }
+            result *= wordWeight * wordModel.getWordProbability(history, word) + (1 - wordWeight) * classProbability;
+        }
+        return result;
+    }
+
+    public NGramLanguageModel getWordModel() {
+        return wordModel;
+    }
+
+    public NGramLanguageModel getClassModel() {
+        return classModel;
+    }
+
+    @Override
+    public List<String> generateSentence() {
+        return null;
+    }
+}
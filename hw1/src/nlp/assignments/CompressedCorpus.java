@@ -0,0 +1,257 @@
+package nlp.assignments;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Opens sentence corpora that may be stored compressed, for LanguageModelTester's SentenceCollection to tokenize.
+ *
+ * A file is opened by its first bytes rather than its name: plain text is read as it is, and a gzip file is either
+ * a single stream, inflated as it is read, or block-compressed in the BGZF format written by bgzip (a series of
+ * gzip members of at most 64KB each, whose headers give their compressed size). Blocks are independent, so their
+ * compressed bytes are read ahead in order and inflated on a thread pool, a bounded window of them at a time, and
+ * the tokenizer reads the inflated blocks in order. writeBlockCompressed() makes such a file from a plain one.
+ */
+public class CompressedCorpus {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    //uncompressed bytes per block, as bgzip uses, so a deflated block always fits the 16 bit block size
+    private static final int BLOCK_BYTES = 0xff00;
+    private static final int MAX_BLOCK = 1 << 16;
+    private static final int HEADER_BYTES = 18, FOOTER_BYTES = 8;
+
+    /**
+     * Opens a corpus file as plain bytes, inflating blocks on every available processor
+     */
+    public static InputStream open(File file) throws IOException {
+        return open(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Opens a corpus file as plain bytes, whether it is plain text, gzip, or block-compressed gzip (inflated on the
+     * given number of threads)
+     */
+    public static InputStream open(File file, int threads) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        byte[] header = new byte[HEADER_BYTES];
+        in.mark(HEADER_BYTES);
+        int read = 0, n;
+        while (read < HEADER_BYTES && (n = in.read(header, read, HEADER_BYTES - read)) > 0) read += n;
+        in.reset();
+
+        if (read < 2 || ((header[0] & 0xff) | (header[1] & 0xff) << 8) != GZIP_MAGIC) return in;
+        if (read == HEADER_BYTES && blockSize(header) > 0) return new BlockInputStream(in, threads);
+        return new GZIPInputStream(in, 1 << 16);
+    }
+
+    /**
+     * The total size of a BGZF block from its header, or -1 if the header is not a BGZF one
+     */
+    private static int blockSize(byte[] header) {
+        boolean extra = (header[3] & 4) != 0;
+        int extraLength = (header[10] & 0xff) | (header[11] & 0xff) << 8;
+        if (!extra || extraLength != 6 || header[12] != 'B' || header[13] != 'C' || header[14] != 2) return -1;
+        return ((header[16] & 0xff) | (header[17] & 0xff) << 8) + 1;
+    }
+
+    /**
+     * Block-compresses a file in the BGZF format, ending with the empty block bgzip writes as an end marker
+     */
+    public static void writeBlockCompressed(File from, File to) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(from), 1 << 16);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(to), 1 << 16)) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            byte[] block = new byte[BLOCK_BYTES], deflated = new byte[MAX_BLOCK];
+            int length;
+            do {
+                length = 0;
+                int n;
+                while (length < BLOCK_BYTES && (n = in.read(block, length, BLOCK_BYTES - length)) > 0) length += n;
+                writeBlock(out, deflater, block, length, deflated);
+            } while (length > 0);
+            deflater.end();
+        }
+    }
+
+    private static void writeBlock(OutputStream out, Deflater deflater, byte[] block, int length, byte[] deflated)
+            throws IOException {
+        deflater.reset();
+        deflater.setInput(block, 0, length);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished() && size < deflated.length) size += deflater.deflate(deflated, size,
+                deflated.length - size);
+        if (!deflater.finished() || size + HEADER_BYTES + FOOTER_BYTES > MAX_BLOCK)
+            throw new IOException("Block does not compress into " + MAX_BLOCK + " bytes");
+
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, length);
+        int total = size + HEADER_BYTES + FOOTER_BYTES;
+        byte[] header = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+                (byte) (total - 1), (byte) ((total - 1) >>> 8)};
+        out.write(header);
+        out.write(deflated, 0, size);
+        writeInt(out, (int) crc.getValue());
+        writeInt(out, length);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    /**
+     * Inflates BGZF blocks on a thread pool: compressed blocks are read ahead in order, up to a window of them in
+     * flight, and handed back in order as they are consumed
+     */
+    private static class BlockInputStream extends InputStream {
+        private final DataInputStream in;
+        private final ExecutorService pool;
+        private final Deque<Future<byte[]>> window = new ArrayDeque<>();
+        private final int windowSize;
+        private boolean exhausted;
+
+        private byte[] current = new byte[0];
+        private int position;
+
+        BlockInputStream(InputStream in, int threads) {
+            this.in = new DataInputStream(in);
+            this.pool = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.windowSize = threads * 4;
+        }
+
+        /**
+         * Reads the next compressed block whole, or returns null at the end of the file
+         */
+        private byte[] readBlock() throws IOException {
+            byte[] header = new byte[HEADER_BYTES];
+            int first = in.read();
+            if (first < 0) return null;
+            header[0] = (byte) first;
+            in.readFully(header, 1, HEADER_BYTES - 1);
+            int size = blockSize(header);
+            if (size < HEADER_BYTES + FOOTER_BYTES) throw new IOException("Not a block-compressed gzip block");
+
+            byte[] block = Arrays.copyOf(header, size);
+            in.readFully(block, HEADER_BYTES, size - HEADER_BYTES);
+            return block;
+        }
+
+        private static byte[] inflate(byte[] block) throws IOException {
+            int footer = block.length - FOOTER_BYTES;
+            int length = (block[footer + 4] & 0xff) | (block[footer + 5] & 0xff) << 8
+                    | (block[footer + 6] & 0xff) << 16 | (block[footer + 7] & 0xff) << 24;
+            int expectedCrc = (block[footer] & 0xff) | (block[footer + 1] & 0xff) << 8
+                    | (block[footer + 2] & 0xff) << 16 | (block[footer + 3] & 0xff) << 24;
+
+            byte[] inflated = new byte[length];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(block, HEADER_BYTES, footer - HEADER_BYTES);
+                int size = 0;
+                while (size < length && !inflater.finished()) {
+                    int n = inflater.inflate(inflated, size, length - size);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    size += n;
+                }
+                if (size != length) throw new IOException("Truncated block-compressed gzip block");
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(inflated);
+            if ((int) crc.getValue() != expectedCrc) throw new IOException("Block-compressed gzip CRC mismatch");
+            return inflated;
+        }
+
+        private void fill() throws IOException {
+            while (!exhausted && window.size() < windowSize) {
+                byte[] block = readBlock();
+                if (block == null) exhausted = true;
+                else window.addLast(pool.submit(() -> inflate(block)));
+            }
+        }
+
+        /**
+         * Moves on to the next non-empty inflated block, returning false at the end of the file
+         */
+        private boolean advance() throws IOException {
+            while (position == current.length) {
+                fill();
+                if (window.isEmpty()) return false;
+                try {
+                    current = window.removeFirst().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    throw new IOException(e.getCause());
+                }
+                position = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return advance() ? current[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!advance()) return -1;
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            pool.shutdownNow();
+            in.close();
+        }
+    }
+
+    /**
+     * Block-compresses a corpus file: CompressedCorpus from to
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: CompressedCorpus from to");
+            return;
+        }
+        writeBlockCompressed(new File(args[0]), new File(args[1]));
+    }
+}
@@ -0,0 +1,161 @@
+package nlp.assignments;
+
+import nlp.util.Counter;
+import nlp.util.CounterMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The n-gram tables of every order above unigram as a single reversed-context trie over word ids (see NGramTrie), so
+ * the node of "b c" is reached from the root along c, then b. A node holds the words seen after its history, sorted
+ * by id, with their probabilities, and the history's backoff weight for unseen words.
+ *
+ * Every history is stored once, as one node, shared with all the longer histories that end with it (where a
+ * CounterMap per order keeps "b c" as a key of its own and again inside "a b c"). Scoring walks back from the word
+ * being predicted: each step down is one more word of history and so one order higher, so a single walk gives
+ * every order's probability.
+ *
+ * Nodes are flattened into parallel arrays: the children of node k are childWords/childNodes[childOffsets[k] ..
+ * childOffsets[k + 1]) and its words are words/probabilities[wordOffsets[k] .. wordOffsets[k + 1]), both sorted by
+ * word id and binary searched.
+ */
+class ContextTrie extends NGramTrie {
+
+    final int[] childOffsets, childWords, childNodes;
+    final int[] wordOffsets, words;
+    final double[] probabilities, heldBack;
+
+    /**
+     * Builds the trie from each order's CounterMap (counterMaps[order], from order 2 to n), giving words the ids of
+     * the vocabulary (which is added to for any word it lacks). The unseen key's count, if any, is the backoff weight.
+     */
+    ContextTrie(CounterMap<String, String>[] counterMaps, Vocabulary vocabulary) {
+        super(new int[counterMaps.length], new int[counterMaps.length]);
+        int n = counterMaps.length - 1;
+
+        //first as edges keyed by (parent << 32 | word), with each node's distribution as it is found
+        Map<Long, Integer> edges = new HashMap<>();
+        List<int[]> nodeWords = new ArrayList<>();
+        List<double[]> nodeProbabilities = new ArrayList<>();
+        List<Double> nodeHeldBack = new ArrayList<>();
+        nodeWords.add(null);
+        nodeProbabilities.add(null);
+        nodeHeldBack.add(0.0);
+
+        for (int order = 2; order <= n; order++) {
+            CounterMap<String, String> counterMap = counterMaps[order];
+            contextCounts[order] = counterMap.size();
+            for (String context : counterMap.keySet()) {
+                String[] history = context.split(" ");
+                int node = 0;
+                for (int b = history.length - 1; b >= 0; b--) {
+                    long edge = ((long) node << 32) | vocabulary.index(history[b]);
+                    Integer child = edges.get(edge);
+                    if (child == null) {
+                        child = nodeWords.size();
+                        edges.put(edge, child);
+                        nodeWords.add(null);
+                        nodeProbabilities.add(null);
+                        nodeHeldBack.add(0.0);
+                    }
+                    node = child;
+                }
+
+                Counter<String> following = counterMap.getCounter(context);
+                long[] sorted = new long[following.size()];
+                double[] counts = new double[following.size()];
+                int size = 0;
+                for (String word : following.keySet()) {
+                    if (word.equals(NGramLanguageModel.unseen)) {
+                        nodeHeldBack.set(node, following.getCount(word));
+                        continue;
+                    }
+                    counts[size] = following.getCount(word);
+                    sorted[size] = ((long) vocabulary.index(word) << 32) | size;
+                    size++;
+                }
+                Arrays.sort(sorted, 0, size);
+
+                int[] ids = new int[size];
+                double[] values = new double[size];
+                for (int j = 0; j < size; j++) {
+                    ids[j] = (int) (sorted[j] >>> 32);
+                    values[j] = counts[(int) sorted[j]];
+                }
+                nodeWords.set(node, ids);
+                nodeProbabilities.set(node, values);
+                ngramCounts[order] += size;
+            }
+        }
+
+        int nodes = nodeWords.size();
+        heldBack = new double[nodes];
+        wordOffsets = new int[nodes + 1];
+        for (int k = 0; k < nodes; k++) {
+            heldBack[k] = nodeHeldBack.get(k);
+            wordOffsets[k + 1] = wordOffsets[k] + (nodeWords.get(k) == null ? 0 : nodeWords.get(k).length);
+        }
+        words = new int[wordOffsets[nodes]];
+        probabilities = new double[wordOffsets[nodes]];
+        for (int k = 0; k < nodes; k++) {
+            if (nodeWords.get(k) == null) continue;
+            System.arraycopy(nodeWords.get(k), 0, words, wordOffsets[k], nodeWords.get(k).length);
+            System.arraycopy(nodeProbabilities.get(k), 0, probabilities, wordOffsets[k], nodeWords.get(k).length);
+        }
+
+        //group the edges by parent, each parent's children sorted by word
+        childOffsets = new int[nodes + 1];
+        for (long edge : edges.keySet()) childOffsets[(int) (edge >>> 32) + 1]++;
+        for (int k = 0; k < nodes; k++) childOffsets[k + 1] += childOffsets[k];
+        long[] children = new long[edges.size()];
+        int[] fill = Arrays.copyOf(childOffsets, nodes);
+        for (Map.Entry<Long, Integer> edge : edges.entrySet()) {
+            int parent = (int) (edge.getKey() >>> 32), word = (int) (long) edge.getKey();
+            children[fill[parent]++] = ((long) word << 32) | edge.getValue();
+        }
+        childWords = new int[children.length];
+        childNodes = new int[children.length];
+        for (int k = 0; k < nodes; k++) {
+            Arrays.sort(children, childOffsets[k], childOffsets[k + 1]);
+            for (int j = childOffsets[k]; j < childOffsets[k + 1]; j++) {
+                childWords[j] = (int) (children[j] >>> 32);
+                childNodes[j] = (int) children[j];
+            }
+        }
+    }
+
+    @Override
+    int child(int node, int word) {
+        int j = Arrays.binarySearch(childWords, childOffsets[node], childOffsets[node + 1], word);
+        return j < 0 ? -1 : childNodes[j];
+    }
+
+    @Override
+    double probability(int node, int word) {
+        int j = wordIndex(node, word);
+        return j < 0 ? 0.0 : probabilities[j];
+    }
+
+    /**
+     * The index into words (and probabilities) of a word id among a node's, or -1 if it was not seen there
+     */
+    int wordIndex(int node, int word) {
+        int j = Arrays.binarySearch(words, wordOffsets[node], wordOffsets[node + 1], word);
+        return j < 0 ? -1 : j;
+    }
+
+    @Override
+    double heldBack(int node) {
+        return heldBack[node];
+    }
+
+    @Override
+    long bytes() {
+        return 4L * (childOffsets.length + childWords.length + childNodes.length + wordOffsets.length + words.length)
+                + 8L * (probabilities.length + heldBack.length) + 7 * 16;
+    }
+}
@@ -0,0 +1,173 @@
+package nlp.assignments;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * K-fold cross-validation of n-gram model configurations over a training collection, for choosing the order, smoother
+ * and lambdas without spending the test set on it.
+ *
+ * Sentences are dealt round robin into k folds, and each fold's n-grams (up to the highest order asked for) are
+ * counted once, as are their sum. The model held out from a fold is then built from the total counts minus that
+ * fold's, rather than by recounting the other k-1 folds, and scored on the fold. Every configuration's folds are
+ * built and scored in parallel; a configuration's perplexity is pooled over all held-out sentences (total log
+ * probability over total symbols), added up in fold order so it does not depend on which fold finishes first.
+ *
+ * A closed vocabulary is shared by every fold, as subtracting one fold's counts from the total only works if they
+ * were all mapped the same way. When it was built from all the sentences it leaks the held-out folds: a word seen
+ * only in the held-out fold is in the vocabulary rather than unknown, so the held-out model gives it its own (unseen)
+ * probability instead of the unknown word's, and word counts near the cutoff include the held-out fold's. Build it
+ * from data outside the sentences being cross-validated where that matters; open vocabularies do not leak.
+ */
+public class CrossValidator {
+
+    public static class Result {
+        public final EvaluationRunner.ModelSpec spec;
+        public final double perplexity;
+        public final double[] foldPerplexities;
+        public final double seconds;
+
+        Result(EvaluationRunner.ModelSpec spec, double perplexity, double[] foldPerplexities, double seconds) {
+            this.spec = spec;
+            this.perplexity = perplexity;
+            this.foldPerplexities = foldPerplexities;
+            this.seconds = seconds;
+        }
+    }
+
+    private final List<List<List<String>>> folds = new ArrayList<>();
+    private final NGramCounts[] foldCounts;
+    private final NGramCounts total;
+    private final Vocabulary vocabulary;
+    private final int threads;
+
+    /**
+     * Splits the sentences into k folds and counts them, on the given number of threads
+     *
+     * @param maxOrder the highest order of model that will be cross-validated
+     * @param vocabulary a closed vocabulary for every model, or null for open ones; see above for how one built from
+     *                   these sentences leaks the held-out folds
+     */
+    public CrossValidator(Collection<List<String>> sentences, int k, int maxOrder, Vocabulary vocabulary,
+                          int threads) {
+        if (k < 2) throw new IllegalArgumentException("Need at least two folds");
+        this.vocabulary = vocabulary;
+        this.threads = threads;
+
+        for (int f = 0; f < k; f++) folds.add(new ArrayList<>());
+        int i = 0;
+        for (List<String> sentence : sentences) folds.get(i++ % k).add(sentence);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<NGramCounts>> futures = new ArrayList<>();
+            for (List<List<String>> fold : folds)
+                futures.add(pool.submit(() -> NGramCounts.count(maxOrder, fold, vocabulary)));
+            foldCounts = new NGramCounts[k];
+            for (int f = 0; f < k; f++) foldCounts[f] = get(futures.get(f));
+        } finally {
+            pool.shutdownNow();
+        }
+
+        total = new NGramCounts(maxOrder);
+        for (NGramCounts counts : foldCounts) total.add(counts);
+    }
+
+    public int getFolds() {
+        return folds.size();
+    }
+
+    /**
+     * The model trained on every fold but the given one, as a model of that configuration trained on those folds'
+     * sentences would be
+     */
+    NGramLanguageModel heldOutModel(EvaluationRunner.ModelSpec spec, int fold) {
+        return new NGramLanguageModel(spec.order, total, foldCounts[fold], spec.newSmoother(), spec.lambdas,
+                vocabulary);
+    }
+
+    /**
+     * Cross-validates every configuration, returning their results in the same order
+     */
+    public List<Result> run(List<EvaluationRunner.ModelSpec> specs) {
+        for (EvaluationRunner.ModelSpec spec : specs)
+            if (spec.order > total.maxOrder)
+                throw new IllegalArgumentException("Model " + spec.name + " is above the counted order " + total.maxOrder);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            //each fold's total log (base 2) probability and symbol count, and how long it took
+            List<List<Future<double[]>>> futures = new ArrayList<>();
+            for (EvaluationRunner.ModelSpec spec : specs) {
+                List<Future<double[]>> specFutures = new ArrayList<>();
+                for (int f = 0; f < folds.size(); f++) {
+                    int fold = f;
+                    specFutures.add(pool.submit(() -> {
+                        long start = System.nanoTime();
+                        NGramLanguageModel model = heldOutModel(spec, fold);
+                        double logProbability = 0.0, symbols = 0.0;
+                        for (List<String> sentence : folds.get(fold)) {
+                            logProbability += Math.log(model.getSentenceProbability(sentence)) / Math.log(2.0);
+                            symbols += sentence.size();
+                        }
+                        return new double[]{logProbability, symbols, (System.nanoTime() - start) / 1e9};
+                    }));
+                }
+                futures.add(specFutures);
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (int s = 0; s < specs.size(); s++) {
+                double logProbability = 0.0, symbols = 0.0, seconds = 0.0;
+                double[] foldPerplexities = new double[folds.size()];
+                for (int f = 0; f < folds.size(); f++) {
+                    double[] fold = get(futures.get(s).get(f));
+                    logProbability += fold[0];
+                    symbols += fold[1];
+                    seconds += fold[2];
+                    foldPerplexities[f] = Math.pow(0.5, fold[0] / fold[1]);
+                }
+                results.add(new Result(specs.get(s), Math.pow(0.5, logProbability / symbols), foldPerplexities,
+                        seconds));
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Writes results as a tab-separated table with a header row, the fold perplexities comma separated
+     */
+    public static void writeResults(List<Result> results, PrintStream out) {
+        out.println("model\torder\tsmoother\tperplexity\tfold_perplexities\tseconds");
+        for (Result result : results) {
+            StringBuilder folds = new StringBuilder();
+            for (double perplexity : result.foldPerplexities) {
+                if (folds.length() > 0) folds.append(',');
+                folds.append(perplexity);
+            }
+            out.println(result.spec.name + "\t" + result.spec.order + "\t" + result.spec.smoother + "\t"
+                    + result.perplexity + "\t" + folds + "\t" + String.format(Locale.ROOT, "%.3f", result.seconds));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package nlp.assignments;
+
+/**
+ * An Elias-Fano encoding of a non-decreasing sequence of n non-negative longs below some universe u, in about
+ * 2 + log2(u / n) bits per value, with constant-time random access.
+ *
+ * Each value is split into its low l = floor(log2(u / n)) bits, stored packed, and its high bits, stored in unary: the
+ * i-th value sets bit (high_i + i) of the upper bit vector. Getting value i is then a select (the position of the
+ * i-th set bit) on the upper bits, which the stored position of every 64th set bit reduces to a short scan.
+ */
+class EliasFano {
+
+    private static final int SAMPLE = 64;
+
+    private final int size, lowBits;
+    private final long[] lower, upper;
+    private final int[] samples;
+
+    /**
+     * Encodes values[0..size), which must be non-decreasing and non-negative
+     */
+    EliasFano(long[] values, int size) {
+        this.size = size;
+        long universe = size == 0 ? 1 : values[size - 1] + 1;
+        lowBits = size == 0 ? 0 : Math.max(0, 63 - Long.numberOfLeadingZeros(universe / size));
+
+        lower = new long[(int) (((long) size * lowBits + 63) >>> 6)];
+        long upperLength = size + (universe >>> lowBits) + 1;
+        if (upperLength > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many values to encode");
+        upper = new long[(int) ((upperLength + 63) >>> 6)];
+        samples = new int[(size + SAMPLE - 1) / SAMPLE];
+
+        long lowMask = (1L << lowBits) - 1;
+        for (int i = 0; i < size; i++) {
+            if (i > 0 && values[i] < values[i - 1]) throw new IllegalArgumentException("Values must not decrease");
+            if (lowBits > 0) setLow(i, values[i] & lowMask);
+            long position = (values[i] >>> lowBits) + i;
+            upper[(int) (position >>> 6)] |= 1L << position;
+            if (i % SAMPLE == 0) samples[i / SAMPLE] = (int) position;
+        }
+    }
+
+    private void setLow(int i, long value) {
+        long bit = (long) i * lowBits;
+        int word = (int) (bit >>> 6), offset = (int) (bit & 63);
+        lower[word] |= value << offset;
+        if (offset + lowBits > 64) lower[word + 1] |= value >>> (64 - offset);
+    }
+
+    private long getLow(int i) {
+        if (lowBits == 0) return 0;
+        long bit = (long) i * lowBits;
+        int word = (int) (bit >>> 6), offset = (int) (bit & 63);
+        long value = lower[word] >>> offset;
+        if (offset + lowBits > 64) value |= lower[word + 1] << (64 - offset);
+        return value & ((1L << lowBits) - 1);
+    }
+
+    /**
+     * The position in the upper bit vector of the i-th set bit
+     */
+    private long select(int i) {
+        int position = samples[i / SAMPLE], remaining = i % SAMPLE;
+        int word = position >>> 6;
+        //the sampled set bit is the first one left once the bits below it are masked off
+        long bits = upper[word] & (-1L << (position & 63));
+        int count;
+        while ((count = Long.bitCount(bits)) <= remaining) {
+            remaining -= count;
+            bits = upper[++word];
+        }
+        for (int k = 0; k < remaining; k++) bits &= bits - 1;
+        return ((long) word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    long get(int i) {
+        return ((select(i) - i) << lowBits) | getLow(i);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * The index in [from, to) of the given value, or -1 if it is not there
+     */
+    int find(int from, int to, long value) {
+        int lo = from, hi = to - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midValue = get(mid);
+            if (midValue < value) lo = mid + 1;
+            else if (midValue > value) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    long bytes() {
+        return 8L * (lower.length + upper.length) + 4L * samples.length + 3 * 16;
+    }
+}
@@ -0,0 +1,232 @@
+package nlp.assignments;
+
+import nlp.util.MetricsRegistry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Builds and evaluates a list of n-gram model configurations concurrently, for sweeping orders, smoothers and
+ * lambdas without a hand-written block of LanguageModelTester per model.
+ *
+ * Configurations are read from a file, one per line: a name, the order, a smoother (none, laplace, goodturing or
+ * wittenbell) and, for orders above one, the n-1 lambdas separated by commas, e.g.
+ *
+ *   trigram-gt  3  goodturing  0.5,0.3
+ *
+ * Blank lines and lines starting with # are skipped. Each model is built and then scored (test perplexity and N-best
+ * word error rate) on its own thread, and dropped once scored. A model may only start building once its predicted
+ * heap footprint (from FootprintReport.estimate) fits in what is left of the memory budget, so big models wait for
+ * room rather than exhausting the heap. Results come out as a tab-separated table, one row per configuration in file
+ * order, with timings.
+ */
+public class EvaluationRunner {
+
+    public static class ModelSpec {
+        public final String name;
+        public final int order;
+        public final String smoother;
+        public final double[] lambdas;
+
+        public ModelSpec(String name, int order, String smoother, double[] lambdas) {
+            this.name = name;
+            this.order = order;
+            this.smoother = smoother;
+            this.lambdas = lambdas;
+        }
+
+        ISmoother newSmoother() {
+            switch (smoother.toLowerCase(Locale.ROOT)) {
+                case "none":
+                    return null;
+                case "laplace":
+                    return new LaplaceSmoother();
+                case "goodturing":
+                    return new GoodTuringSmoother();
+                case "wittenbell":
+                    return new WittenBellSmoother();
+                default:
+                    throw new IllegalArgumentException("Unknown smoother " + smoother + " for model " + name);
+            }
+        }
+    }
+
+    public static class Result {
+        public final ModelSpec spec;
+        public final long estimatedBytes;
+        public final double buildSeconds, evaluationSeconds, perplexity, wordErrorRate;
+
+        Result(ModelSpec spec, long estimatedBytes, double buildSeconds, double evaluationSeconds, double perplexity,
+               double wordErrorRate) {
+            this.spec = spec;
+            this.estimatedBytes = estimatedBytes;
+            this.buildSeconds = buildSeconds;
+            this.evaluationSeconds = evaluationSeconds;
+            this.perplexity = perplexity;
+            this.wordErrorRate = wordErrorRate;
+        }
+    }
+
+    private static final long MEGABYTE = 1 << 20;
+
+    private final Collection<List<String>> trainingSentences, testSentences;
+    private final List<SpeechNBestList> speechNBestLists;
+    private final Vocabulary vocabulary;
+    private final int threads;
+    private final long memoryBudget;
+
+    /**
+     * @param vocabulary a closed vocabulary for every model, or null for open ones
+     * @param threads how many models to build and score at once
+     * @param memoryBudget the heap bytes the models being built and scored at once may take between them
+     */
+    public EvaluationRunner(Collection<List<String>> trainingSentences, Collection<List<String>> testSentences,
+                            List<SpeechNBestList> speechNBestLists, Vocabulary vocabulary, int threads,
+                            long memoryBudget) {
+        this.trainingSentences = trainingSentences;
+        this.testSentences = testSentences;
+        this.speechNBestLists = speechNBestLists;
+        this.vocabulary = vocabulary;
+        this.threads = threads;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Reads model configurations, one per line, as described above
+     */
+    public static List<ModelSpec> readSpecs(String path) throws IOException {
+        List<ModelSpec> specs = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                String[] fields = line.split("\\s+");
+                if (fields.length < 3)
+                    throw new IllegalArgumentException(path + ":" + lineNumber + ": expected name, order, smoother");
+                int order = Integer.parseInt(fields[1]);
+                double[] lambdas = fields.length > 3
+                        ? Arrays.stream(fields[3].split(",")).mapToDouble(Double::parseDouble).toArray()
+                        : new double[0];
+                if (lambdas.length != order - 1)
+                    throw new IllegalArgumentException(path + ":" + lineNumber + ": expected " + (order - 1)
+                            + " lambdas for an order " + order + " model");
+                specs.add(new ModelSpec(fields[0], order, fields[2], order > 1 ? lambdas : null));
+            }
+        }
+        return specs;
+    }
+
+    /**
+     * The predicted heap bytes of a model of each order (index 1 up), from one estimate at the highest order
+     */
+    private long[] estimateBytes(int maxOrder) {
+        long[] bytes = new long[maxOrder + 1];
+        for (FootprintReport.Row row : FootprintReport.estimate(maxOrder, trainingSentences, 10).getRows())
+            bytes[row.order] = row.currentBytes;
+        for (int order = 2; order <= maxOrder; order++) bytes[order] += bytes[order - 1];
+        return bytes;
+    }
+
+    /**
+     * Builds and scores every configuration, returning their results in the same order. Timings are also
+     * recorded to the metrics registry, if it is not null.
+     */
+    public List<Result> run(List<ModelSpec> specs, MetricsRegistry metrics) {
+        int maxOrder = 1;
+        for (ModelSpec spec : specs) maxOrder = Math.max(maxOrder, spec.order);
+        long[] estimates = estimateBytes(maxOrder);
+
+        //the budget in megabytes, as permits; a model bigger than the whole budget runs on its own
+        int budget = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / MEGABYTE));
+        Semaphore memory = new Semaphore(budget, true);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> futures = new ArrayList<>();
+        for (ModelSpec spec : specs) {
+            long estimate = estimates[spec.order];
+            int permits = (int) Math.max(1, Math.min(budget, (estimate + MEGABYTE - 1) / MEGABYTE));
+            futures.add(pool.submit(() -> {
+                memory.acquire(permits);
+                try {
+                    return evaluate(spec, estimate, metrics);
+                } finally {
+                    memory.release(permits);
+                }
+            }));
+        }
+
+        List<Result> results = new ArrayList<>();
+        try {
+            for (Future<Result> future : futures) results.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    private Result evaluate(ModelSpec spec, long estimatedBytes, MetricsRegistry metrics) {
+        long start = System.nanoTime();
+        NGramLanguageModel model = new NGramLanguageModel(spec.order, trainingSentences, spec.newSmoother(),
+                spec.lambdas, null, vocabulary);
+        double buildSeconds = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        double perplexity = LanguageModelTester.calculatePerplexity(model, testSentences,
+                metrics == null ? null : metrics.histogram("lm_sentence_seconds", "model", spec.name));
+        double wordErrorRate = LanguageModelTester.calculateWordErrorRate(model, speechNBestLists, false,
+                metrics == null ? null : metrics.histogram("lm_nbest_seconds", "model", spec.name));
+        double evaluationSeconds = (System.nanoTime() - start) / 1e9;
+
+        if (metrics != null) {
+            metrics.setGauge("lm_training_seconds", buildSeconds, "model", spec.name);
+            metrics.setGauge("lm_evaluation_seconds", evaluationSeconds, "model", spec.name);
+        }
+        return new Result(spec, estimatedBytes, buildSeconds, evaluationSeconds, perplexity, wordErrorRate);
+    }
+
+    /**
+     * Writes results as a tab-separated table with a header row
+     */
+    public static void writeResults(List<Result> results, PrintStream out) {
+        out.println("model\torder\tsmoother\tlambdas\testimated_bytes\tbuild_seconds\tevaluation_seconds"
+                + "\tperplexity\tword_error_rate");
+        for (Result result : results) {
+            ModelSpec spec = result.spec;
+            StringBuilder lambdas = new StringBuilder();
+            if (spec.lambdas != null) {
+                for (double lambda : spec.lambdas) {
+                    if (lambdas.length() > 0) lambdas.append(',');
+                    lambdas.append(lambda);
+                }
+            }
+            out.println(spec.name + "\t" + spec.order + "\t" + spec.smoother + "\t"
+                    + (lambdas.length() == 0 ? "-" : lambdas) + "\t" + result.estimatedBytes + "\t"
+                    + String.format(Locale.ROOT, "%.3f\t%.3f", result.buildSeconds, result.evaluationSeconds) + "\t"
+                    + result.perplexity + "\t" + result.wordErrorRate);
+        }
+    }
+}
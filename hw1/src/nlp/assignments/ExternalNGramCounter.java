@@ -0,0 +1,340 @@
+package nlp.assignments;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Counts the n-grams of a corpus in bounded memory, in the style of KenLM's lmplz.
+ *
+ * Each token is written as one record of n word ids (its n-1 word history, padded with start symbols, then the
+ * word itself) into a fixed-size int buffer. When the buffer fills it is sorted, duplicate records are collapsed
+ * into counts, and the run is spilled to a temp file. finish() k-way merges the runs into one table of distinct
+ * n-grams, then derives every lower order in a single further pass.
+ *
+ * Records are sorted by their reversed id sequence (the predicted word first, then the history from nearest to
+ * furthest), so every n-gram sharing its last k words is contiguous and order k's counts fall out of the merged
+ * stream as runs. The tables of every order come out sorted the same way.
+ *
+ * Heap use is the vocabulary plus the buffer (4 * n * bufferRecords bytes) plus one record per run while merging.
+ */
+public class ExternalNGramCounter {
+
+    /**
+     * Receives the records of a table in order
+     */
+    public interface NGramConsumer {
+        void accept(int[] ids, long count);
+    }
+
+    /**
+     * Sorted on-disk count tables for orders 1 to n, with the vocabulary their ids refer to. Tables are temp
+     * files, deleted on close().
+     */
+    public static class Result implements Closeable {
+        private final int n;
+        private final Vocabulary vocabulary;
+        private final File[] tables;
+        private final long[] sizes;
+
+        Result(int n, Vocabulary vocabulary, File[] tables, long[] sizes) {
+            this.n = n;
+            this.vocabulary = vocabulary;
+            this.tables = tables;
+            this.sizes = sizes;
+        }
+
+        public int getOrder() {
+            return n;
+        }
+
+        public Vocabulary getVocabulary() {
+            return vocabulary;
+        }
+
+        /**
+         * The number of distinct n-grams of the given order
+         */
+        public long size(int order) {
+            return sizes[order - 1];
+        }
+
+        /**
+         * Streams the table of the given order. The ids array is reused between calls.
+         */
+        public void read(int order, NGramConsumer consumer) {
+            try (RunReader reader = new RunReader(tables[order - 1], order)) {
+                while (reader.advance()) consumer.accept(reader.ids, reader.count);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            for (File table : tables) table.delete();
+        }
+    }
+
+    private final int n;
+    private final File tempDirectory;
+    private final Vocabulary vocabulary = new Vocabulary();
+    private final int startId, stopId;
+
+    private final int[] buffer;
+    private int bufferedRecords;
+    private final List<File> runs = new ArrayList<>();
+
+    /**
+     * @param bufferRecords how many n-gram records to hold in memory before spilling
+     * @param tempDirectory where to spill runs, or null for the default temp directory
+     */
+    public ExternalNGramCounter(int n, int bufferRecords, File tempDirectory) {
+        this.n = n;
+        this.tempDirectory = tempDirectory;
+        buffer = new int[bufferRecords * n];
+        startId = vocabulary.index(NGramLanguageModel.start);
+        stopId = vocabulary.index(NGramLanguageModel.stop);
+    }
+
+    /**
+     * Counts every sentence of a corpus and returns the finished tables
+     */
+    public static Result count(int n, Collection<List<String>> sentences, int bufferRecords, File tempDirectory) {
+        ExternalNGramCounter counter = new ExternalNGramCounter(n, bufferRecords, tempDirectory);
+        for (List<String> sentence : sentences) counter.add(sentence);
+        return counter.finish();
+    }
+
+    public void add(List<String> sentence) {
+        int[] record = new int[n];
+        for (int i = 0; i < n - 1; i++) record[i] = startId;
+
+        for (int i = 0; i <= sentence.size(); i++) {
+            record[n - 1] = i < sentence.size() ? vocabulary.index(sentence.get(i)) : stopId;
+
+            if (bufferedRecords * n == buffer.length) spill();
+            System.arraycopy(record, 0, buffer, bufferedRecords * n, n);
+            bufferedRecords++;
+
+            System.arraycopy(record, 1, record, 0, n - 1);
+        }
+    }
+
+    /**
+     * Reversed lexicographic comparison of two records of the given width
+     */
+    static int compare(int[] a, int aOffset, int[] b, int bOffset, int width) {
+        for (int i = width - 1; i >= 0; i--) {
+            int difference = Integer.compare(a[aOffset + i], b[bOffset + i]);
+            if (difference != 0) return difference;
+        }
+        return 0;
+    }
+
+    private void swap(int i, int j) {
+        for (int k = 0; k < n; k++) {
+            int tmp = buffer[i * n + k];
+            buffer[i * n + k] = buffer[j * n + k];
+            buffer[j * n + k] = tmp;
+        }
+    }
+
+    /**
+     * In-place three-way quicksort of buffer records [from, to) (n-gram data is full of duplicates), with insertion
+     * sort for short ranges; recurses on the smaller side
+     */
+    private void sort(int from, int to) {
+        int[] pivot = new int[n];
+        while (to - from > 16) {
+            int mid = (from + to) >>> 1, last = to - 1;
+            if (compare(buffer, mid * n, buffer, from * n, n) < 0) swap(mid, from);
+            if (compare(buffer, last * n, buffer, from * n, n) < 0) swap(last, from);
+            if (compare(buffer, last * n, buffer, mid * n, n) < 0) swap(last, mid);
+            System.arraycopy(buffer, mid * n, pivot, 0, n);
+
+            int lt = from, i = from, gt = to;
+            while (i < gt) {
+                int c = compare(buffer, i * n, pivot, 0, n);
+                if (c < 0) swap(lt++, i++);
+                else if (c > 0) swap(i, --gt);
+                else i++;
+            }
+
+            if (lt - from < to - gt) {
+                sort(from, lt);
+                from = gt;
+            } else {
+                sort(gt, to);
+                to = lt;
+            }
+        }
+        for (int i = from + 1; i < to; i++)
+            for (int j = i; j > from && compare(buffer, j * n, buffer, (j - 1) * n, n) < 0; j--) swap(j, j - 1);
+    }
+
+    private File createTempFile(String suffix) throws IOException {
+        File file = File.createTempFile("ngrams", suffix, tempDirectory);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static DataOutputStream openOutput(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    private static void writeRecord(DataOutputStream out, int[] ids, int offset, int width, long count)
+            throws IOException {
+        for (int i = 0; i < width; i++) out.writeInt(ids[offset + i]);
+        out.writeLong(count);
+    }
+
+    /**
+     * Sorts the buffer, collapses duplicates into counts and writes it out as a run
+     */
+    private void spill() {
+        if (bufferedRecords == 0) return;
+        sort(0, bufferedRecords);
+        try {
+            File run = createTempFile(".run");
+            try (DataOutputStream out = openOutput(run)) {
+                int start = 0;
+                for (int i = 1; i <= bufferedRecords; i++) {
+                    if (i == bufferedRecords || compare(buffer, i * n, buffer, start * n, n) != 0) {
+                        writeRecord(out, buffer, start * n, n, i - start);
+                        start = i;
+                    }
+                }
+            }
+            runs.add(run);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        bufferedRecords = 0;
+    }
+
+    /**
+     * Reads a run or table record by record
+     */
+    static class RunReader implements Closeable {
+        final DataInputStream in;
+        final int[] ids;
+        long count;
+
+        RunReader(File file, int width) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            ids = new int[width];
+        }
+
+        boolean advance() throws IOException {
+            try {
+                for (int i = 0; i < ids.length; i++) ids[i] = in.readInt();
+                count = in.readLong();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Spills what is left, merges the runs and derives the lower orders. The counter cannot be used afterwards. The
+     * run files are deleted either way, and the tables too if merging fails.
+     */
+    public Result finish() {
+        spill();
+        File[] tables = new File[n];
+        long[] sizes = new long[n];
+        List<RunReader> readers = new ArrayList<>();
+        DataOutputStream[] outs = new DataOutputStream[n];
+        boolean finished = false;
+
+        try {
+            for (int order = 1; order <= n; order++) tables[order - 1] = createTempFile(".order" + order);
+            for (int order = 1; order <= n; order++) outs[order - 1] = openOutput(tables[order - 1]);
+
+            PriorityQueue<RunReader> heads = new PriorityQueue<>((a, b) -> compare(a.ids, 0, b.ids, 0, n));
+            for (File run : runs) {
+                RunReader reader = new RunReader(run, n);
+                readers.add(reader);
+                if (reader.advance()) heads.add(reader);
+            }
+
+            //for each order k, the current run of records sharing their last k ids, and its running count
+            int[] current = null;
+            long[] runCounts = new long[n];
+
+            while (!heads.isEmpty()) {
+                RunReader head = heads.poll();
+                int[] ids = head.ids.clone();
+                long count = head.count;
+                if (head.advance()) heads.add(head);
+
+                if (current != null) {
+                    //the longest shared suffix decides which orders' runs end here
+                    int shared = 0;
+                    while (shared < n && ids[n - 1 - shared] == current[n - 1 - shared]) shared++;
+                    for (int order = n; order > shared; order--) {
+                        writeRecord(outs[order - 1], current, n - order, order, runCounts[order - 1]);
+                        sizes[order - 1]++;
+                        runCounts[order - 1] = 0;
+                    }
+                }
+                current = ids;
+                for (int order = 1; order <= n; order++) runCounts[order - 1] += count;
+            }
+
+            if (current != null) {
+                for (int order = 1; order <= n; order++) {
+                    writeRecord(outs[order - 1], current, n - order, order, runCounts[order - 1]);
+                    sizes[order - 1]++;
+                }
+            }
+
+            for (int order = 1; order <= n; order++) {
+                outs[order - 1].close();
+                outs[order - 1] = null;
+            }
+            finished = true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (RunReader reader : readers) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+            //if merging failed, close whatever is still open and delete the part-written tables
+            for (DataOutputStream out : outs) {
+                if (out == null) continue;
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (!finished) for (File table : tables) if (table != null) table.delete();
+            for (File run : runs) run.delete();
+            runs.clear();
+        }
+
+        return new Result(n, vocabulary, tables, sizes);
+    }
+}
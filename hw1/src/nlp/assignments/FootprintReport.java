@@ -0,0 +1,227 @@
+package nlp.assignments;
+
+import nlp.util.Counter;
+import nlp.util.CounterMap;
+import nlp.util.MemoryUsage;
+import nlp.util.MetricsRegistry;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per-order memory footprint of an n-gram model: distinct n-grams, distinct histories, and the estimated bytes
+ * both for the current representation (Counter/CounterMaps, or the off-heap tables or trie they were moved to) and
+ * for a compact one (each n-gram as a packed long key plus a float probability in sorted parallel arrays, each
+ * history as a long key plus an int offset).
+ *
+ * Reports either describe a trained NGramLanguageModel (of) or predict one before training (estimate).
+ */
+public class FootprintReport {
+
+    static final int COMPACT_BYTES_PER_NGRAM = 8 + 4, COMPACT_BYTES_PER_CONTEXT = 8 + 4, COMPACT_BYTES_PER_WORD_ID = 4;
+
+    public static class Row {
+        public final int order;
+        public final long ngrams, contexts, currentBytes, compactBytes;
+
+        Row(int order, long ngrams, long contexts, long currentBytes, long compactBytes) {
+            this.order = order;
+            this.ngrams = ngrams;
+            this.contexts = contexts;
+            this.currentBytes = currentBytes;
+            this.compactBytes = compactBytes;
+        }
+    }
+
+    private final String name;
+    private final boolean predicted;
+    private final List<Row> rows;
+
+    private FootprintReport(String name, boolean predicted, List<Row> rows) {
+        this.name = name;
+        this.predicted = predicted;
+        this.rows = Collections.unmodifiableList(rows);
+    }
+
+    /**
+     * Measures the footprint of a trained model. This walks every key, so is linear in the model size. Once the
+     * model's tables are off heap or in a trie, their current bytes are what they take there.
+     */
+    public static FootprintReport of(String name, NGramLanguageModel model) {
+        List<Row> rows = new ArrayList<>();
+
+        Counter<String> unigrams = model.getUnigramCounter();
+        rows.add(new Row(1, unigrams.size(), 1, unigrams.estimateMemoryBytes(), compactUnigramBytes(unigrams)));
+
+        for (int order = 2; order <= model.getOrder(); order++) {
+            if (!model.hasCounterMaps()) {
+                long ngrams = model.getNGramCount(order), contexts = model.getContextCount(order);
+                rows.add(new Row(order, ngrams, contexts, model.getTableBytes(order), compactBytes(ngrams, contexts)));
+                continue;
+            }
+            CounterMap<String, String> counterMap = model.getCounterMap(order);
+            long ngrams = counterMap.totalSize(), contexts = counterMap.size();
+            rows.add(new Row(order, ngrams, contexts, counterMap.estimateMemoryBytes(), compactBytes(ngrams, contexts)));
+        }
+
+        return new FootprintReport(name, false, rows);
+    }
+
+    private static long compactUnigramBytes(Counter<String> unigrams) {
+        long bytes = (long) unigrams.size() * (COMPACT_BYTES_PER_NGRAM + COMPACT_BYTES_PER_WORD_ID);
+        for (String word : unigrams.keySet()) bytes += MemoryUsage.stringBytes(word);
+        return bytes;
+    }
+
+    private static long compactBytes(long ngrams, long contexts) {
+        return ngrams * COMPACT_BYTES_PER_NGRAM + contexts * COMPACT_BYTES_PER_CONTEXT;
+    }
+
+    /**
+     * Predicts the footprint of an NGramLanguageModel of order n trained on the given corpus, without building it.
+     *
+     * Every sampleEvery-th sentence is counted into real Counter/CounterMaps (so memory use is 1/sampleEvery of a
+     * full build), and the distinct n-gram and history counts are recorded as the sample doubles in size. Growth
+     * to the full corpus is then extrapolated with Heaps' law, V(N) = V_s * (N / N_s)^beta, with beta fitted per
+     * order from the last two sample sizes; bytes are scaled from the sample's bytes per n-gram.
+     */
+    public static FootprintReport estimate(int n, Collection<List<String>> corpus, int sampleEvery) {
+        Counter<String> unigrams = new Counter<>();
+        List<CounterMap<String, String>> counterMaps = new ArrayList<>();
+        for (int i = 0; i < n - 1; i++) counterMaps.add(new CounterMap<>());
+
+        //distinct n-grams and histories of each order (index 0 = unigrams), at the current and previous checkpoint
+        long[] ngrams = new long[n], contexts = new long[n], checkpointNGrams = new long[n], checkpointContexts = new long[n];
+        long totalTokens = 0, sampleTokens = 0, checkpointTokens = 0, nextCheckpoint = 1024;
+        contexts[0] = 1;
+
+        int sentenceIndex = 0;
+        for (List<String> sentence : corpus) {
+            totalTokens += sentence.size() + 1;
+            if (sentenceIndex++ % sampleEvery != 0) continue;
+
+            String[] previousWordBuffer = new String[n - 1];
+            for (int i = 0; i < n - 1; i++) previousWordBuffer[i] = NGramLanguageModel.start;
+            List<String> stoppedSentence = new ArrayList<>(sentence);
+            stoppedSentence.add(NGramLanguageModel.stop);
+
+            for (String word : stoppedSentence) {
+                if (unigrams.getCount(word) == 0) ngrams[0]++;
+                unigrams.incrementCount(word, 1.0);
+
+                for (int a = 0; a < n - 1; a++) {
+                    String context = NGramLanguageModel.context(previousWordBuffer, a);
+
+                    CounterMap<String, String> counterMap = counterMaps.get(a);
+                    int order = n - a;
+                    if (!counterMap.containsKey(context)) contexts[order - 1]++;
+                    if (counterMap.getCount(context, word) == 0) ngrams[order - 1]++;
+                    counterMap.incrementCount(context, word, 1.0);
+                }
+
+                if (n > 1) {
+                    System.arraycopy(previousWordBuffer, 1, previousWordBuffer, 0, previousWordBuffer.length - 1);
+                    previousWordBuffer[previousWordBuffer.length - 1] = word;
+                }
+
+                if (++sampleTokens == nextCheckpoint) {
+                    checkpointTokens = sampleTokens;
+                    System.arraycopy(ngrams, 0, checkpointNGrams, 0, n);
+                    System.arraycopy(contexts, 0, checkpointContexts, 0, n);
+                    nextCheckpoint *= 2;
+                }
+            }
+        }
+
+        List<Row> rows = new ArrayList<>();
+        for (int order = 1; order <= n; order++) {
+            long predictedNGrams = extrapolate(checkpointTokens, checkpointNGrams[order - 1], sampleTokens,
+                    ngrams[order - 1], totalTokens);
+            long predictedContexts = order == 1 ? 1 : extrapolate(checkpointTokens, checkpointContexts[order - 1],
+                    sampleTokens, contexts[order - 1], totalTokens);
+
+            long sampleBytes = order == 1 ? unigrams.estimateMemoryBytes()
+                    : counterMaps.get(n - order).estimateMemoryBytes();
+            double bytesPerNGram = ngrams[order - 1] == 0 ? 0.0 : (double) sampleBytes / ngrams[order - 1];
+            long compact = order == 1
+                    ? (long) (compactUnigramBytes(unigrams) * ((double) predictedNGrams / Math.max(1, ngrams[0])))
+                    : compactBytes(predictedNGrams, predictedContexts);
+
+            rows.add(new Row(order, predictedNGrams, predictedContexts, (long) (bytesPerNGram * predictedNGrams),
+                    compact));
+        }
+
+        return new FootprintReport("estimated " + n + "-gram", true, rows);
+    }
+
+    /**
+     * Heaps' law extrapolation of a distinct-type count from sample size sampleTokens to totalTokens. With no
+     * usable earlier checkpoint growth is assumed linear; it can never exceed one new type per token.
+     */
+    static long extrapolate(long checkpointTokens, long checkpointTypes, long sampleTokens, long sampleTypes,
+                            long totalTokens) {
+        if (sampleTokens == 0) return 0;
+        double beta = 1.0;
+        if (checkpointTokens > 0 && checkpointTokens < sampleTokens && checkpointTypes > 0)
+            beta = Math.log((double) sampleTypes / checkpointTypes) / Math.log((double) sampleTokens / checkpointTokens);
+        beta = Math.max(0.0, Math.min(1.0, beta));
+        double predicted = sampleTypes * Math.pow((double) totalTokens / sampleTokens, beta);
+        return (long) Math.min(predicted, sampleTypes + (totalTokens - sampleTokens));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isPredicted() {
+        return predicted;
+    }
+
+    public List<Row> getRows() {
+        return rows;
+    }
+
+    public long getCurrentBytes() {
+        long total = 0;
+        for (Row row : rows) total += row.currentBytes;
+        return total;
+    }
+
+    public long getCompactBytes() {
+        long total = 0;
+        for (Row row : rows) total += row.compactBytes;
+        return total;
+    }
+
+    /**
+     * Publishes the per-order rows as gauges, labelled with the given model name
+     */
+    public void reportMetrics(MetricsRegistry metrics, String modelName) {
+        for (Row row : rows) {
+            String o = Integer.toString(row.order);
+            metrics.setGauge("lm_estimated_bytes", row.currentBytes, "model", modelName, "order", o,
+                    "representation", "current");
+            metrics.setGauge("lm_estimated_bytes", row.compactBytes, "model", modelName, "order", o,
+                    "representation", "compact");
+        }
+    }
+
+    private static String megabytes(long bytes) {
+        return new DecimalFormat("0.0").format(bytes / (1024.0 * 1024.0)) + "MB";
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("----" + name.toUpperCase() + (predicted ? " (PREDICTED)" : "") + "\n");
+        for (Row row : rows) {
+            sb.append(String.format("--------ORDER %d: %,12d n-grams %,12d histories   current %10s   compact %10s%n",
+                    row.order, row.ngrams, row.contexts, megabytes(row.currentBytes), megabytes(row.compactBytes)));
+        }
+        sb.append(String.format("--------TOTAL:   current %s   compact %s%n",
+                megabytes(getCurrentBytes()), megabytes(getCompactBytes())));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,121 @@
+package nlp.assignments;
+
+import nlp.util.Counter;
+import nlp.util.CounterMap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Simple Good-Turing smoothing (Gale & Sampson, 1995).
+ *
+ * Counts are replaced by r* = (r + 1) N(r+1) / N(r), where N(r) is the number of keys seen r times, switching to a
+ * log-linear fit of N(r) once the raw estimates become too noisy. The count-of-counts histogram is built in one
+ * pass and the adjusted counts form a table over its distinct counts, so smoothing is linear in the number of
+ * entries.
+ *
+ * The unigram Counter keeps the Good-Turing estimate of unseen mass, N(1) / N, under the unknown word. For each
+ * history of a CounterMap, counts of at most KATZ_THRESHOLD are discounted (larger counts are reliable, as in Katz
+ * back-off) and the discounted mass is held back under the unseen key for words never seen after that history.
+ */
+public class GoodTuringSmoother implements ISmoother {
+
+    static final double KATZ_THRESHOLD = 5;
+
+    @Override
+    public Counter<String> smoothCounter(Counter<String> toSmooth) {
+        //beyond NGramLanguageModel's one placeholder count, the unknown word's count is rare words mapped to it by a
+        //vocabulary cutoff, which is smoothed like any other word's
+        double mapped = toSmooth.removeKey(NGramLanguageModel.unknown) - 1;
+        if (mapped > 0) toSmooth.setCount(NGramLanguageModel.unknown, mapped);
+        Counter<Double> countOfCounts = toSmooth.getCountOfCounts();
+        Map<Double, Double> adjusted = adjustedCounts(countOfCounts);
+
+        double total = toSmooth.totalCount(), singletons = countOfCounts.getCount(1.0), adjustedTotal = 0.0;
+        for (Map.Entry<Double, Double> entry : adjusted.entrySet())
+            adjustedTotal += countOfCounts.getCount(entry.getKey()) * entry.getValue();
+
+        //renormalize so the seen words share exactly what the unseen mass leaves
+        double scale = (total - singletons) / adjustedTotal;
+        for (String key : toSmooth.keySet()) toSmooth.setCount(key, adjusted.get(toSmooth.getCount(key)) * scale);
+        toSmooth.incrementCount(NGramLanguageModel.unknown, Math.max(singletons, 1.0));
+        return toSmooth;
+    }
+
+    @Override
+    public CounterMap<String, String> smoothCounterMap(CounterMap<String, String> toSmooth) {
+        Map<Double, Double> adjusted = adjustedCounts(toSmooth.getCountOfCounts());
+
+        for (String context : toSmooth.keySet()) {
+            Counter<String> counter = toSmooth.getCounter(context);
+            double heldBack = 0.0;
+            for (String word : counter.keySet()) {
+                double count = counter.getCount(word), adjustedCount = adjusted.get(count);
+                if (count > KATZ_THRESHOLD || adjustedCount >= count) continue;
+                toSmooth.setCount(context, word, adjustedCount);
+                heldBack += count - adjustedCount;
+            }
+            if (heldBack > 0) toSmooth.setCount(context, NGramLanguageModel.unseen, heldBack);
+        }
+        return toSmooth;
+    }
+
+    @Override
+    public boolean reservesUnseenMass() {
+        return true;
+    }
+
+    //the count-of-counts are taken over every history
+    @Override
+    public boolean isHistoryLocal() {
+        return false;
+    }
+
+    /**
+     * Maps each count in a count-of-counts histogram to its Simple Good-Turing adjusted count
+     */
+    static Map<Double, Double> adjustedCounts(Counter<Double> countOfCounts) {
+        double[] counts = new double[countOfCounts.size()];
+        int i = 0;
+        for (double count : new TreeSet<>(countOfCounts.keySet())) counts[i++] = count;
+
+        Map<Double, Double> adjusted = new HashMap<>();
+        if (counts.length < 2) {
+            for (double count : counts) adjusted.put(count, count);
+            return adjusted;
+        }
+
+        //fit log Z(r) = a + b log r, where Z averages N(r) over the gap to the neighbouring counts
+        double sumX = 0.0, sumY = 0.0, sumXX = 0.0, sumXY = 0.0;
+        for (i = 0; i < counts.length; i++) {
+            double previous = i == 0 ? 0.0 : counts[i - 1];
+            double next = i == counts.length - 1 ? 2 * counts[i] - previous : counts[i + 1];
+            double x = Math.log(counts[i]), y = Math.log(2 * countOfCounts.getCount(counts[i]) / (next - previous));
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+        }
+        double slope = (counts.length * sumXY - sumX * sumY) / (counts.length * sumXX - sumX * sumX);
+        double intercept = (sumY - slope * sumX) / counts.length;
+
+        boolean useFit = false;
+        for (double r : counts) {
+            double nr = countOfCounts.getCount(r), nextNr = countOfCounts.getCount(r + 1);
+            double fitted = (r + 1) * Math.exp(intercept + slope * Math.log(r + 1)) / Math.exp(intercept + slope * Math.log(r));
+
+            if (!useFit && nextNr > 0) {
+                double turing = (r + 1) * nextNr / nr;
+                double confidence = 1.96 * Math.sqrt((r + 1) * (r + 1) * nextNr / (nr * nr) * (1 + nextNr / nr));
+                if (Math.abs(turing - fitted) > confidence) {
+                    adjusted.put(r, turing);
+                    continue;
+                }
+            }
+            useFit = true;
+            adjusted.put(r, fitted);
+        }
+        return adjusted;
+    }
+}
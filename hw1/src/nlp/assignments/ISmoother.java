@@ -11,4 +11,23 @@ import nlp.util.CounterMap;
 public interface ISmoother {
     Counter<String> smoothCounter(Counter<String> toSmooth);
     CounterMap<String, String> smoothCounterMap(CounterMap<String, String> toSmooth);
+
+    /**
+     * Whether this smoother holds back probability mass for unseen words, by giving it to the unknown word key of
+     * the Counter and to the unseen key (NGramLanguageModel.unseen) of each of the CounterMap's sub-counters.
+     * NGramLanguageModel then shares a history's held-back mass among the words never seen after it, in proportion
+     * to their unigram probabilities. (The unknown word can itself be seen after a history, once a closed vocabulary
+     * maps rare words to it, so the two keys are kept apart.)
+     */
+    default boolean reservesUnseenMass() {
+        return false;
+    }
+
+    /**
+     * Whether each history of a CounterMap is smoothed from its own counts alone, so a model whose histories are split
+     * across shards (see ShardedLanguageModel) is smoothed exactly as the whole model would be
+     */
+    default boolean isHistoryLocal() {
+        return true;
+    }
 }
@@ -0,0 +1,208 @@
+package nlp.assignments;
+
+import nlp.langmodel.LanguageModel;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An unbounded-order ("infini-gram", Liu et al. 2024) language model: rather than counting n-grams of a fixed n, it
+ * keeps the training corpus as word ids plus a suffix array over it, and counts any n-gram on demand by binary
+ * searching for the block of suffixes that start with it. Memory is two ints per training token (and a vocabulary),
+ * whatever the length of the contexts queried.
+ *
+ * A word is predicted from the longest suffix of its history (back to the start of its sentence) that occurs in
+ * the corpus, found at query time: P_inf(w | h) = c(h' w) / c(h'), where h' is that suffix. As counts only shrink
+ * as a context grows, the longest matching suffix is found by binary searching on its length. P_inf is zero for a
+ * word never seen after h', so it is interpolated with the unigram distribution (which keeps mass for unknown
+ * words, as NGramLanguageModel's does).
+ */
+public class InfiniGramLanguageModel implements LanguageModel {
+
+    private final Vocabulary vocabulary = new Vocabulary();
+    private final int startId, stopId;
+    private final double lambda;
+
+    //each sentence as <S> w1 ... wk </S>, back to back, and the start positions of its suffixes in sorted order
+    private final int[] corpus;
+    private final int[] suffixArray;
+
+    //unigram counts by id, over the predicted tokens (words and stop symbols, not start symbols)
+    private final long[] unigramCounts;
+    private final long predictedTokens;
+
+    /**
+     * @param lambda the weight of the unbounded-order estimate; the unigram distribution gets 1 - lambda
+     */
+    public InfiniGramLanguageModel(Collection<List<String>> trainingSentences, double lambda) {
+        this.lambda = lambda;
+        startId = vocabulary.index(NGramLanguageModel.start);
+        stopId = vocabulary.index(NGramLanguageModel.stop);
+
+        int length = 0;
+        for (List<String> sentence : trainingSentences) length += sentence.size() + 2;
+        corpus = new int[length];
+        int i = 0;
+        for (List<String> sentence : trainingSentences) {
+            corpus[i++] = startId;
+            for (String word : sentence) corpus[i++] = vocabulary.index(word);
+            corpus[i++] = stopId;
+        }
+
+        unigramCounts = new long[vocabulary.size()];
+        for (int id : corpus) unigramCounts[id]++;
+        predictedTokens = length - unigramCounts[startId];
+        unigramCounts[startId] = 0;
+
+        suffixArray = buildSuffixArray(corpus, vocabulary.size());
+    }
+
+    /**
+     * Prefix doubling (Manber & Myers): suffixes are ranked by their first k tokens, then by their first 2k by
+     * sorting on (rank of the first k, rank of the next k), with a stable counting sort, until every rank is
+     * distinct. O(n log n) time and four ints per token while building.
+     */
+    static int[] buildSuffixArray(int[] text, int alphabetSize) {
+        int n = text.length;
+        int[] suffixes = new int[n], rank = new int[n], next = new int[n];
+        int[] counts = new int[Math.max(alphabetSize, n) + 1];
+        if (n == 0) return suffixes;
+
+        //rank by first token
+        for (int token : text) counts[token + 1]++;
+        for (int r = 1; r <= alphabetSize; r++) counts[r] += counts[r - 1];
+        for (int i = 0; i < n; i++) suffixes[counts[text[i]]++] = i;
+        rank[suffixes[0]] = 0;
+        for (int j = 1; j < n; j++)
+            rank[suffixes[j]] = rank[suffixes[j - 1]] + (text[suffixes[j]] != text[suffixes[j - 1]] ? 1 : 0);
+
+        for (int k = 1; rank[suffixes[n - 1]] < n - 1; k <<= 1) {
+            //order by the second key: suffixes too short to have one come first, then the rest in rank order
+            int p = 0;
+            for (int i = n - k; i < n; i++) next[p++] = i;
+            for (int j = 0; j < n; j++) if (suffixes[j] >= k) next[p++] = suffixes[j] - k;
+
+            //stable counting sort by the first key
+            int ranks = rank[suffixes[n - 1]] + 1;
+            Arrays.fill(counts, 0, ranks + 1, 0);
+            for (int i = 0; i < n; i++) counts[rank[i] + 1]++;
+            for (int r = 1; r <= ranks; r++) counts[r] += counts[r - 1];
+            for (int j = 0; j < n; j++) suffixes[counts[rank[next[j]]]++] = next[j];
+
+            //re-rank, reusing next
+            next[suffixes[0]] = 0;
+            for (int j = 1; j < n; j++) {
+                int a = suffixes[j - 1], b = suffixes[j];
+                boolean same = rank[a] == rank[b]
+                        && (a + k < n ? rank[a + k] : -1) == (b + k < n ? rank[b + k] : -1);
+                next[b] = next[a] + (same ? 0 : 1);
+            }
+            int[] tmp = rank;
+            rank = next;
+            next = tmp;
+        }
+        return suffixes;
+    }
+
+    /**
+     * Compares the suffix starting at corpus position suffix with pattern[from..from+length), over at most length
+     * tokens: zero if the suffix starts with the pattern
+     */
+    private int compare(int suffix, int[] pattern, int from, int length) {
+        for (int k = 0; k < length; k++) {
+            if (suffix + k == corpus.length) return -1;
+            int difference = Integer.compare(corpus[suffix + k], pattern[from + k]);
+            if (difference != 0) return difference;
+        }
+        return 0;
+    }
+
+    /**
+     * The block [lo, hi) of suffixArray (within [lo, hi) given) whose suffixes start with pattern[from..from+length)
+     */
+    private long find(int[] pattern, int from, int length, int lo, int hi) {
+        int a = lo, b = hi;
+        while (a < b) {
+            int mid = (a + b) >>> 1;
+            if (compare(suffixArray[mid], pattern, from, length) < 0) a = mid + 1;
+            else b = mid;
+        }
+        int start = a;
+        b = hi;
+        while (a < b) {
+            int mid = (a + b) >>> 1;
+            if (compare(suffixArray[mid], pattern, from, length) <= 0) a = mid + 1;
+            else b = mid;
+        }
+        return ((long) start << 32) | a;
+    }
+
+    /**
+     * The number of times a sequence of words (of any length) occurs in the training corpus, where sentences are
+     * wrapped in start and stop symbols
+     */
+    public long getCount(List<String> words) {
+        int[] pattern = new int[words.size()];
+        for (int i = 0; i < pattern.length; i++) pattern[i] = vocabulary.indexOf(words.get(i));
+        long range = find(pattern, 0, pattern.length, 0, suffixArray.length);
+        return (int) range - (range >>> 32);
+    }
+
+    private int[] encode(List<String> sentence) {
+        int[] ids = new int[sentence.size() + 2];
+        ids[0] = startId;
+        for (int i = 0; i < sentence.size(); i++) ids[i + 1] = vocabulary.indexOf(sentence.get(i));
+        ids[ids.length - 1] = stopId;
+        return ids;
+    }
+
+    private double getUnigramProbability(int id) {
+        //as NGramLanguageModel, unknown words share one extra count
+        long count = id < 0 || unigramCounts[id] == 0 ? 1 : unigramCounts[id];
+        return (double) count / (predictedTokens + 1);
+    }
+
+    /**
+     * The unbounded-order estimate of ids[i] given ids[0..i): the word's count after the longest suffix of the
+     * history that occurs in the corpus, over that suffix's count. If not even the last word of the history occurs
+     * (it is unknown), the unigram estimate.
+     */
+    private double getInfiniGramProbability(int[] ids, int i) {
+        //the longest matching suffix of the history, binary searched on its length; length 0 always matches
+        int shortest = 0, longest = i;
+        long best = suffixArray.length;
+        while (shortest < longest) {
+            int length = (shortest + longest + 1) >>> 1;
+            long range = find(ids, i - length, length, 0, suffixArray.length);
+            if ((int) range > (int) (range >>> 32)) {
+                shortest = length;
+                best = range;
+            } else {
+                longest = length - 1;
+            }
+        }
+        if (shortest == 0) return getUnigramProbability(ids[i]);
+        if (ids[i] < 0) return 0.0;
+
+        //within the context's block, suffixes are sorted by the word after it
+        int lo = (int) (best >>> 32), hi = (int) best;
+        long following = find(ids, i - shortest, shortest + 1, lo, hi);
+        return (double) ((int) following - (following >>> 32)) / (hi - lo);
+    }
+
+    @Override
+    public double getSentenceProbability(List<String> sentence) {
+        int[] ids = encode(sentence);
+        double result = 1.0;
+        for (int i = 1; i < ids.length; i++) {
+            result *= lambda * getInfiniGramProbability(ids, i) + (1 - lambda) * getUnigramProbability(ids[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> generateSentence() {
+        return null;
+    }
+}
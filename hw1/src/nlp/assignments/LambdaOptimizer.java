@@ -0,0 +1,143 @@
+package nlp.assignments;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Tunes the interpolation weights of an NGramLanguageModel on held-out sentences.
+ *
+ * Each order's own probability for every validation token is looked up once, in the constructor, into one primitive
+ * array per order. EM and grid search then only ever read those arrays, so trying a set of weights costs a dot
+ * product per token rather than rescoring the sentences.
+ */
+public class LambdaOptimizer {
+
+    private static final double LOG_2 = Math.log(2.0);
+
+    private final int n;
+    private final int tokens;
+    private final double numSymbols;
+    //probabilities[j][t]: order j's estimate for token t, highest order first and unigrams last
+    private final double[][] probabilities;
+
+    public LambdaOptimizer(NGramLanguageModel model, Collection<List<String>> validationSentences) {
+        n = model.getOrder();
+
+        List<double[][]> rows = new ArrayList<>();
+        int tokenCount = 0;
+        double symbols = 0.0;
+        for (List<String> sentence : validationSentences) {
+            double[][] sentenceProbabilities = model.getOrderProbabilities(sentence);
+            rows.add(sentenceProbabilities);
+            tokenCount += sentenceProbabilities.length;
+            symbols += sentence.size();
+        }
+        tokens = tokenCount;
+        numSymbols = symbols;
+
+        probabilities = new double[n][tokens];
+        int t = 0;
+        for (double[][] sentenceProbabilities : rows) {
+            for (double[] row : sentenceProbabilities) {
+                for (int j = 0; j < n; j++) probabilities[j][t] = row[j];
+                t++;
+            }
+        }
+    }
+
+    /**
+     * Expands model-style lambdas (one per order above unigram) into a full weight vector ending in the unigram's
+     */
+    static double[] toWeights(double[] lambdas) {
+        double[] weights = new double[lambdas.length + 1];
+        double remainder = 1.0;
+        for (int j = 0; j < lambdas.length; j++) {
+            weights[j] = lambdas[j];
+            remainder -= lambdas[j];
+        }
+        weights[lambdas.length] = remainder;
+        return weights;
+    }
+
+    /**
+     * Log (base e) likelihood of the validation tokens under the given model-style lambdas
+     */
+    public double logLikelihood(double[] lambdas) {
+        double[] weights = toWeights(lambdas);
+        double logLikelihood = 0.0;
+        for (int t = 0; t < tokens; t++) {
+            double p = 0.0;
+            for (int j = 0; j < n; j++) p += weights[j] * probabilities[j][t];
+            logLikelihood += Math.log(p);
+        }
+        return logLikelihood;
+    }
+
+    /**
+     * Validation perplexity under the given lambdas, computed as LanguageModelTester.calculatePerplexity does
+     */
+    public double perplexity(double[] lambdas) {
+        return Math.pow(0.5, logLikelihood(lambdas) / LOG_2 / numSymbols);
+    }
+
+    /**
+     * Runs EM from uniform weights until the log likelihood improves by less than tolerance (or maxIterations), and
+     * returns the model-style lambdas. Each iteration is one pass over the cached arrays.
+     */
+    public double[] expectationMaximization(int maxIterations, double tolerance) {
+        double[] weights = new double[n];
+        for (int j = 0; j < n; j++) weights[j] = 1.0 / n;
+
+        double previous = Double.NEGATIVE_INFINITY;
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            double[] expectedCounts = new double[n];
+            double logLikelihood = 0.0;
+            for (int t = 0; t < tokens; t++) {
+                double p = 0.0;
+                for (int j = 0; j < n; j++) p += weights[j] * probabilities[j][t];
+                logLikelihood += Math.log(p);
+                for (int j = 0; j < n; j++) expectedCounts[j] += weights[j] * probabilities[j][t] / p;
+            }
+            for (int j = 0; j < n; j++) weights[j] = expectedCounts[j] / tokens;
+
+            if (logLikelihood - previous < tolerance) break;
+            previous = logLikelihood;
+        }
+
+        double[] lambdas = new double[n - 1];
+        System.arraycopy(weights, 0, lambdas, 0, n - 1);
+        return lambdas;
+    }
+
+    /**
+     * Tries every set of lambdas on a grid of the given step (each a multiple of step, leaving the unigram at least
+     * step), in parallel, and returns the most likely. Ties go to the first candidate generated.
+     */
+    public double[] gridSearch(double step) {
+        int steps = (int) Math.round(1.0 / step);
+        List<double[]> candidates = new ArrayList<>();
+        enumerate(new int[n - 1], 0, steps - 1, step, candidates);
+
+        double[] scores = IntStream.range(0, candidates.size()).parallel()
+                .mapToDouble(i -> logLikelihood(candidates.get(i))).toArray();
+
+        int best = 0;
+        for (int i = 1; i < scores.length; i++) if (scores[i] > scores[best]) best = i;
+        return candidates.get(best);
+    }
+
+    private static void enumerate(int[] units, int position, int remaining, double step, List<double[]> candidates) {
+        if (position == units.length) {
+            double[] lambdas = new double[units.length];
+            for (int j = 0; j < units.length; j++) lambdas[j] = units[j] * step;
+            candidates.add(lambdas);
+            return;
+        }
+        for (int u = 0; u <= remaining; u++) {
+            units[position] = u;
+            enumerate(units, position + 1, remaining - u, step, candidates);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package nlp.assignments;
+
+import nlp.util.CommandLineUtils;
+import nlp.util.MetricsRegistry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves an NGramLanguageModel over a localhost socket, so several decoder processes can share one copy of a model
+ * rather than each training or loading their own.
+ *
+ * The protocol is line based: each request is one line, answered by one line, in order, per connection.
+ *
+ *   S &lt;tab&gt; w1 w2 ... wk              the probability of the sentence w1 ... wk
+ *   W &lt;tab&gt; h1 h2 ... hm &lt;tab&gt; w     the probability of w following the history h1 ... hm (which may be empty)
+ *   P &lt;tab&gt; h1 h2 ... hm &lt;tab&gt; w     order m+1's own, un-interpolated, probability of w following h1 ... hm
+ *
+ * The answer is a double, or "E &lt;tab&gt; message" if the request could not be answered. Clients may pipeline,
+ * writing several requests before reading their answers. RemoteLanguageModel is a client.
+ *
+ * Each connection is read by its own thread, but all scoring is done by a single scoring thread, which takes
+ * requests off a shared queue in micro-batches: once a request arrives it waits up to maxDelayMicros for more, up to
+ * maxBatch, then scores them back to back. Under load, requests from every connection are scored together with one
+ * hand-off per batch rather than per request; when idle, a lone request waits at most maxDelayMicros.
+ */
+public class LanguageModelServer implements Closeable {
+
+    //the lambdas LanguageModelTester uses for each order's unsmoothed model
+    static final double[][] DEFAULT_LAMBDAS = {
+            {}, {0.7}, {0.5, 0.3}, {0.28, 0.27, 0.17}, {0.3, 0.2, 0.15, 0.1}
+    };
+
+    private static class Request {
+        final char type;
+        final List<String> words;
+        final String word; //null for a sentence request
+        final CompletableFuture<String> answer = new CompletableFuture<>();
+
+        Request(char type, List<String> words, String word) {
+            this.type = type;
+            this.words = words;
+            this.word = word;
+        }
+    }
+
+    private final NGramLanguageModel model;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final MetricsRegistry.Histogram batchSeconds = metrics.histogram("lm_server_batch_seconds");
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private final Set<Socket> openSockets = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Thread acceptor, scorer;
+    private volatile boolean closed;
+
+    /**
+     * Starts serving the model on the loopback interface
+     * @param port the port to listen on, or 0 for any free port (see getPort())
+     */
+    public LanguageModelServer(NGramLanguageModel model, int port, int maxBatch, long maxDelayMicros)
+            throws IOException {
+        this.model = model;
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::accept, "lm-server-acceptor");
+        scorer = new Thread(this::score, "lm-server-scorer");
+        scorer.start();
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Request and batch counts, and the time taken to score each batch
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                openSockets.add(socket);
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) System.err.println("LM server: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads requests off one connection and writes their answers. Requests that have already arrived are queued
+     * together before waiting on any answer, so a pipelining client's requests can share a batch.
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            List<CompletableFuture<String>> pending = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                pending.add(submit(line));
+                if (in.ready() && pending.size() < maxBatch) continue;
+
+                for (CompletableFuture<String> answer : pending) {
+                    out.write(answer.join());
+                    out.write('\n');
+                }
+                out.flush();
+                pending.clear();
+            }
+        } catch (IOException e) {
+            if (!closed) System.err.println("LM server: " + e.getMessage());
+        } finally {
+            openSockets.remove(socket);
+        }
+    }
+
+    private CompletableFuture<String> submit(String line) {
+        String[] fields = line.split("\t", -1);
+        Request request = null;
+        if (fields.length == 2 && fields[0].equals("S")) request = new Request('S', words(fields[1]), null);
+        else if (fields.length == 3 && (fields[0].equals("W") || fields[0].equals("P")) && !fields[2].isEmpty())
+            request = new Request(fields[0].charAt(0), words(fields[1]), fields[2]);
+
+        if (request == null || closed) {
+            CompletableFuture<String> error = new CompletableFuture<>();
+            error.complete(request == null ? "E\tMalformed request" : "E\tServer closed");
+            return error;
+        }
+        queue.add(request);
+        return request.answer;
+    }
+
+    private static List<String> words(String field) {
+        return field.isEmpty() ? Collections.emptyList() : Arrays.asList(field.split(" "));
+    }
+
+    private void score() {
+        List<Request> batch = new ArrayList<>(maxBatch);
+        try {
+            while (!closed) {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    queue.drainTo(batch, maxBatch - batch.size());
+                    long wait = deadline - System.nanoTime();
+                    if (batch.size() == maxBatch || wait <= 0) break;
+                    Request next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+
+                long start = System.nanoTime();
+                for (Request request : batch) {
+                    try {
+                        double probability = request.type == 'S' ? model.getSentenceProbability(request.words)
+                                : request.type == 'W' ? model.getWordProbability(request.words, request.word)
+                                : model.getOrderProbability(request.words, request.word);
+                        request.answer.complete(Double.toString(probability));
+                    } catch (RuntimeException e) {
+                        request.answer.complete("E\t" + e.getMessage());
+                    }
+                }
+                batchSeconds.recordNanos(System.nanoTime() - start);
+                metrics.incrementCounter("lm_server_requests", batch.size());
+                metrics.incrementCounter("lm_server_batches", 1);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Request request : batch) request.answer.complete("E\tServer closed");
+    }
+
+    /**
+     * Stops accepting connections, drops the open ones and stops the scoring thread. The model is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : openSockets) socket.close();
+        connections.shutdownNow();
+        scorer.interrupt();
+        try {
+            acceptor.join();
+            scorer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Request request : queue) request.answer.complete("E\tServer closed");
+    }
+
+    /**
+     * Trains an n-gram model on the assignment's training sentences and serves it until killed. To run, use
+     * <p/>
+     * java nlp.assignments.LanguageModelServer -path ASSIGNMENT_DATA_PATH [-n 5] [-port 7070] [-offheap]
+     * [-batch 64] [-delay 200] [-shard I -shards N]
+     * <p/>
+     * where -delay is the micro-batching delay in microseconds, and -shard/-shards serve only shard I of N (see
+     * ShardedLanguageModel). Port 0 picks a free port, which is printed once the model is being served.
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> argMap = CommandLineUtils.simpleCommandLineParser(args);
+        int n = argMap.containsKey("-n") ? Integer.parseInt(argMap.get("-n")) : 5;
+        int port = argMap.containsKey("-port") ? Integer.parseInt(argMap.get("-port")) : 7070;
+        int maxBatch = argMap.containsKey("-batch") ? Integer.parseInt(argMap.get("-batch")) : 64;
+        long maxDelay = argMap.containsKey("-delay") ? Long.parseLong(argMap.get("-delay")) : 200;
+        int shard = argMap.containsKey("-shard") ? Integer.parseInt(argMap.get("-shard")) : 0;
+        int shards = argMap.containsKey("-shards") ? Integer.parseInt(argMap.get("-shards")) : 1;
+
+        Collection<List<String>> trainingSentences = LanguageModelTester.SentenceCollection.Reader
+                .readSentenceCollection(argMap.get("-path") + "/treebank-sentences-spoken-train.txt");
+        NGramLanguageModel model = (NGramLanguageModel) LanguageModelTester.loadModel("served", () ->
+                new NGramLanguageModel(n, trainingSentences, null, DEFAULT_LAMBDAS[n - 1], shard, shards),
+                new MetricsRegistry(), false);
+        if (argMap.containsKey("-offheap")) model.moveOffHeap();
+
+        LanguageModelServer server = new LanguageModelServer(model, port, maxBatch, maxDelay);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException ignored) {
+            }
+            model.close();
+        }));
+        System.out.println("SERVING " + n + "-GRAM MODEL ON PORT " + server.getPort());
+    }
+}
@@ -1,15 +1,29 @@
 package nlp.assignments;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.function.IntFunction;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.Supplier;
 import java.text.NumberFormat;
 import java.text.DecimalFormat;
 
 import nlp.langmodel.LanguageModel;
 import nlp.util.CommandLineUtils;
+import nlp.util.CounterCodec;
+import nlp.util.MetricsRegistry;
 
 /**
  * This is the main harness for assignment 1. To run this harness, use
@@ -97,27 +111,37 @@ public class LanguageModelTester {
 		static class SentenceIterator implements Iterator<List<String>> {
 
 			BufferedReader reader;
+			String nextLine;
 
 			public boolean hasNext() {
-				try {
-					return reader.ready();
-				} catch (IOException e) {
-					return false;
-				}
+				return nextLine != null;
 			}
 
 			public List<String> next() {
+				if (nextLine == null)
+					throw new NoSuchElementException();
+				String[] words = nextLine.split("\\s+");
+				List<String> sentence = new ArrayList<String>();
+				for (int i = 0; i < words.length; i++) {
+					String word = words[i];
+					sentence.add(word.toLowerCase());
+				}
+				nextLine = readLine();
+				return sentence;
+			}
+
+			/**
+			 * Reads ahead a line (a decompressing reader cannot tell whether
+			 * more is coming without trying), closing the file at its end
+			 */
+			private String readLine() {
 				try {
 					String line = reader.readLine();
-					String[] words = line.split("\\s+");
-					List<String> sentence = new ArrayList<String>();
-					for (int i = 0; i < words.length; i++) {
-						String word = words[i];
-						sentence.add(word.toLowerCase());
-					}
-					return sentence;
+					if (line == null)
+						reader.close();
+					return line;
 				} catch (IOException e) {
-					throw new NoSuchElementException();
+					throw new UncheckedIOException(e);
 				}
 			}
 
@@ -127,17 +151,24 @@ public class LanguageModelTester {
 
 			public SentenceIterator(BufferedReader reader) {
 				this.reader = reader;
+				this.nextLine = readLine();
 			}
 		}
 
 		String fileName;
 
+		/**
+		 * Iterates over the sentences of the file, which may be plain text,
+		 * gzip or block-compressed gzip (see CompressedCorpus), decoded in the
+		 * platform's default charset as FileReader did
+		 */
 		public Iterator<List<String>> iterator() {
 			try {
-				BufferedReader reader = new BufferedReader(new FileReader(
-						fileName));
+				BufferedReader reader = new BufferedReader(new InputStreamReader(
+						CompressedCorpus.open(new File(fileName)),
+						Charset.defaultCharset()), 1 << 16);
 				return new SentenceIterator(reader);
-			} catch (FileNotFoundException e) {
+			} catch (IOException e) {
 				throw new RuntimeException("Problem with SentenceIterator for "
 						+ fileName);
 			}
@@ -168,11 +199,24 @@ public class LanguageModelTester {
 
 	static double calculatePerplexity(LanguageModel languageModel,
 			Collection<List<String>> sentenceCollection) {
+		return calculatePerplexity(languageModel, sentenceCollection, null);
+	}
+
+	/**
+	 * As calculatePerplexity, additionally recording the time taken to score
+	 * each sentence into the given histogram (if it is not null).
+	 */
+	static double calculatePerplexity(LanguageModel languageModel,
+			Collection<List<String>> sentenceCollection,
+			MetricsRegistry.Histogram latency) {
 		double logProbability = 0.0;
 		double numSymbols = 0.0;
 		for (List<String> sentence : sentenceCollection) {
+			long start = System.nanoTime();
 			logProbability += Math.log(languageModel
 					.getSentenceProbability(sentence)) / Math.log(2.0);
+			if (latency != null)
+				latency.recordNanos(System.nanoTime() - start);
 			numSymbols += sentence.size();
 		}
 		double avgLogProbability = logProbability / numSymbols;
@@ -180,12 +224,48 @@ public class LanguageModelTester {
 		return perplexity;
 	}
 
+	/**
+	 * As calculatePerplexity, with the sentences read, scored and added up in
+	 * the stages of a pipeline. The model must be safe to share between
+	 * threads. The result is the same as calculatePerplexity's.
+	 */
+	static double calculatePerplexity(LanguageModel languageModel,
+			Collection<List<String>> sentenceCollection,
+			MetricsRegistry.Histogram latency, ScoringPipeline pipeline) {
+		double[] totals = new double[2];
+		pipeline.run(sentenceCollection, sentence -> {
+			long start = System.nanoTime();
+			double logProbability = Math.log(languageModel
+					.getSentenceProbability(sentence)) / Math.log(2.0);
+			if (latency != null)
+				latency.recordNanos(System.nanoTime() - start);
+			return new double[] { logProbability, sentence.size() };
+		}, scores -> {
+			totals[0] += scores[0];
+			totals[1] += scores[1];
+		});
+		double avgLogProbability = totals[0] / totals[1];
+		return Math.pow(0.5, avgLogProbability);
+	}
+
 	static double calculateWordErrorRate(LanguageModel languageModel,
 			List<SpeechNBestList> speechNBestLists, boolean verbose) {
+		return calculateWordErrorRate(languageModel, speechNBestLists, verbose,
+				null);
+	}
+
+	/**
+	 * As calculateWordErrorRate, additionally recording the time taken to
+	 * rescore each N-best list into the given histogram (if it is not null).
+	 */
+	static double calculateWordErrorRate(LanguageModel languageModel,
+			List<SpeechNBestList> speechNBestLists, boolean verbose,
+			MetricsRegistry.Histogram latency) {
 		double totalDistance = 0.0;
 		double totalWords = 0.0;
 		EditDistance editDistance = new EditDistance();
 		for (SpeechNBestList speechNBestList : speechNBestLists) {
+			long start = System.nanoTime();
 			List<String> correctSentence = speechNBestList.getCorrectSentence();
 			List<String> bestGuess = null;
 			double bestScore = Double.NEGATIVE_INFINITY;
@@ -210,6 +290,8 @@ public class LanguageModelTester {
 			}
 			// double distance = editDistance.getDistance(correctSentence,
 			// bestGuess);
+			if (latency != null)
+				latency.recordNanos(System.nanoTime() - start);
 			totalDistance += distanceForBestScores / numWithBestScores;
 			totalWords += correctSentence.size();
 			if (verbose) {
@@ -223,6 +305,167 @@ public class LanguageModelTester {
 		return totalDistance / totalWords;
 	}
 
+	/**
+	 * As calculateWordErrorRate (without the verbose output), with the lists
+	 * rescored and their edit distances added up in the stages of a pipeline.
+	 * The model must be safe to share between threads. The result is the same
+	 * as calculateWordErrorRate's.
+	 */
+	static double calculateWordErrorRate(LanguageModel languageModel,
+			List<SpeechNBestList> speechNBestLists,
+			MetricsRegistry.Histogram latency, ScoringPipeline pipeline) {
+		double[] totals = new double[2];
+		EditDistance editDistance = new EditDistance();
+		pipeline.run(speechNBestLists, speechNBestList -> {
+			long start = System.nanoTime();
+			double distance = getBestDistance(languageModel, speechNBestList,
+					editDistance);
+			if (latency != null)
+				latency.recordNanos(System.nanoTime() - start);
+			return new double[] { distance,
+					speechNBestList.getCorrectSentence().size() };
+		}, scores -> {
+			totals[0] += scores[0];
+			totals[1] += scores[1];
+		});
+		return totals[0] / totals[1];
+	}
+
+	/**
+	 * As calculateWordErrorRate, with each N-best list made into a word
+	 * lattice and its best path found by rescoring the lattice, so a tie for
+	 * best counts the first path found rather than the average of the tied.
+	 */
+	static double calculateLatticeWordErrorRate(
+			NGramLanguageModel languageModel,
+			List<SpeechNBestList> speechNBestLists,
+			MetricsRegistry.Histogram latency) {
+		double totalDistance = 0.0;
+		double totalWords = 0.0;
+		EditDistance editDistance = new EditDistance();
+		for (SpeechNBestList speechNBestList : speechNBestLists) {
+			long start = System.nanoTime();
+			WordLattice lattice = WordLattice.fromNBestList(speechNBestList);
+			List<String> bestGuess = lattice.rescore(languageModel, 1.0 / 16.0).words;
+			if (latency != null)
+				latency.recordNanos(System.nanoTime() - start);
+			totalDistance += editDistance.getDistance(
+					speechNBestList.getCorrectSentence(), bestGuess);
+			totalWords += speechNBestList.getCorrectSentence().size();
+		}
+		return totalDistance / totalWords;
+	}
+
+	/**
+	 * The edit distance from the correct sentence of the hypothesis the model
+	 * (with the acoustic scores) ranks best, averaged over any tied for best,
+	 * as calculateWordErrorRate adds up for each list.
+	 */
+	static double getBestDistance(LanguageModel languageModel,
+			SpeechNBestList speechNBestList, EditDistance editDistance) {
+		List<List<String>> guesses = speechNBestList.getNBestSentences();
+		return getBestDistance(languageModel,
+				speechNBestList.getCorrectSentence(), guesses.size(),
+				guesses::get,
+				i -> speechNBestList.getAcousticScore(guesses.get(i)),
+				editDistance);
+	}
+
+	/**
+	 * As getBestDistance, over count hypotheses and their acoustic scores
+	 * got by index, so every way of holding N-best lists ranks them and
+	 * breaks ties by the same rule.
+	 */
+	static double getBestDistance(LanguageModel languageModel,
+			List<String> correctSentence, int count,
+			IntFunction<List<String>> hypothesis,
+			IntToDoubleFunction acousticScore, EditDistance editDistance) {
+		double bestScore = Double.NEGATIVE_INFINITY;
+		double numWithBestScores = 0.0;
+		double distanceForBestScores = 0.0;
+		for (int i = 0; i < count; i++) {
+			List<String> guess = hypothesis.apply(i);
+			double score = Math.log(languageModel
+					.getSentenceProbability(guess))
+					+ (acousticScore.applyAsDouble(i) / 16.0);
+			double distance = editDistance.getDistance(correctSentence, guess);
+			if (score == bestScore) {
+				numWithBestScores += 1.0;
+				distanceForBestScores += distance;
+			}
+			if (score > bestScore || i == 0) {
+				bestScore = score;
+				distanceForBestScores = distance;
+				numWithBestScores = 1.0;
+			}
+		}
+		return distanceForBestScores / numWithBestScores;
+	}
+
+	/**
+	 * Scores each test sentence once, keeping its log (base 2) probability
+	 * and symbol count, for bootstrapping perplexity.
+	 */
+	static Bootstrap.Scores scorePerplexity(LanguageModel languageModel,
+			Collection<List<String>> sentenceCollection) {
+		List<List<String>> sentences = new ArrayList<List<String>>(
+				sentenceCollection);
+		double[] logProbabilities = new double[sentences.size()];
+		double[] symbols = new double[sentences.size()];
+		for (int i = 0; i < sentences.size(); i++) {
+			logProbabilities[i] = Math.log(languageModel
+					.getSentenceProbability(sentences.get(i))) / Math.log(2.0);
+			symbols[i] = sentences.get(i).size();
+		}
+		return new Bootstrap.Scores(Bootstrap.Metric.PERPLEXITY,
+				logProbabilities, symbols);
+	}
+
+	/**
+	 * Rescores each N-best list once, keeping its best hypothesis's edit
+	 * distance and the correct sentence's length, for bootstrapping word
+	 * error rate.
+	 */
+	static Bootstrap.Scores scoreWordErrorRate(LanguageModel languageModel,
+			List<SpeechNBestList> speechNBestLists) {
+		double[] distances = new double[speechNBestLists.size()];
+		double[] words = new double[speechNBestLists.size()];
+		EditDistance editDistance = new EditDistance();
+		for (int i = 0; i < speechNBestLists.size(); i++) {
+			distances[i] = getBestDistance(languageModel,
+					speechNBestLists.get(i), editDistance);
+			words[i] = speechNBestLists.get(i).getCorrectSentence().size();
+		}
+		return new Bootstrap.Scores(Bootstrap.Metric.WORD_ERROR_RATE,
+				distances, words);
+	}
+
+	/**
+	 * As calculateWordErrorRate, over N-best lists streamed from the loader
+	 * rather than held in memory. Returns the word error rate, and the number
+	 * of lists scored in counted[0] (if counted is not null).
+	 */
+	static double calculateWordErrorRate(LanguageModel languageModel,
+			NBestListLoader loader, MetricsRegistry.Histogram latency,
+			int[] counted) {
+		double[] totals = new double[2];
+		EditDistance editDistance = new EditDistance();
+		int lists = loader.forEach(speechNBestList -> {
+			long start = System.nanoTime();
+			List<String> correctSentence = speechNBestList.getCorrectSentence();
+			double distance = getBestDistance(languageModel, correctSentence,
+					speechNBestList.size(), speechNBestList::getHypothesis,
+					speechNBestList::getAcousticScore, editDistance);
+			if (latency != null)
+				latency.recordNanos(System.nanoTime() - start);
+			totals[0] += distance;
+			totals[1] += correctSentence.size();
+		});
+		if (counted != null)
+			counted[0] = lists;
+		return totals[0] / totals[1];
+	}
+
 	private static NumberFormat nf = new DecimalFormat("0.00E00");
 
 	private static void displayHypothesis(String prefix, List<String> guess,
@@ -315,6 +558,63 @@ public class LanguageModelTester {
 		return vocabulary;
 	}
 
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Builds a model, recording its build time and training throughput (plus
+	 * its n-gram statistics, for n-gram models) to the metrics registry. If
+	 * instrumented, also records its approximate heap footprint, which forces
+	 * two collections and walks its tables, and turns on n-gram hit counting,
+	 * which adds atomic increments to every lookup.
+	 */
+	static LanguageModel loadModel(String name,
+			Supplier<? extends LanguageModel> builder, MetricsRegistry metrics,
+			boolean instrumented) {
+		long heapBefore = instrumented ? usedHeap() : 0;
+		long start = System.nanoTime();
+		LanguageModel languageModel = builder.get();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		metrics.setGauge("lm_training_seconds", seconds, "model", name);
+		if (instrumented)
+			metrics.setGauge("lm_heap_bytes",
+					Math.max(0, usedHeap() - heapBefore), "model", name);
+		if (languageModel instanceof NGramLanguageModel) {
+			NGramLanguageModel nGramModel = (NGramLanguageModel) languageModel;
+			metrics.setGauge("lm_training_tokens_per_second",
+					nGramModel.getTrainingTokens() / seconds, "model", name,
+					"order", Integer.toString(nGramModel.getOrder()));
+			nGramModel.reportMetrics(metrics, name);
+			if (instrumented) {
+				nGramModel.enableInstrumentation();
+				FootprintReport.of(name, nGramModel).reportMetrics(metrics,
+						name);
+			}
+		}
+		System.out.println(name.toUpperCase() + " LOADED ("
+				+ new DecimalFormat("0.00").format(seconds) + "s)");
+		return languageModel;
+	}
+
+	/**
+	 * Builds an n-gram model from counts made on disk, buffering at most
+	 * bufferRecords n-grams in memory at a time, over the given closed
+	 * vocabulary (or an open one, if null).
+	 */
+	static NGramLanguageModel countOnDisk(int n,
+			Collection<List<String>> trainingSentences, int bufferRecords,
+			ISmoother smoother, double[] lambdas, Vocabulary vocabulary) {
+		try (ExternalNGramCounter.Result counts = ExternalNGramCounter.count(n,
+				vocabulary == null ? trainingSentences : vocabulary.map(trainingSentences),
+				bufferRecords, null)) {
+			return new NGramLanguageModel(counts, smoother, lambdas, null, vocabulary);
+		}
+	}
+
 	public static void mainOld(String[] args) throws IOException {
 		// Parse command line flags and arguments
 		Map<String, String> argMap = CommandLineUtils
@@ -412,7 +712,8 @@ public class LanguageModelTester {
 	}
 
 	public static void main(String[] args) throws IOException {
-		String	basePath = CommandLineUtils.simpleCommandLineParser(args).get("-path"),
+		Map<String, String> argMap = CommandLineUtils.simpleCommandLineParser(args);
+		String	basePath = argMap.get("-path"),
 				trainingFile = "/treebank-sentences-spoken-train.txt",
 				validationFile = "/treebank-sentences-spoken-validate.txt",
 				testFile = "/treebank-sentences-spoken-test.txt",
@@ -429,54 +730,314 @@ public class LanguageModelTester {
 		List<SpeechNBestList> speechNBestLists = SpeechNBestList.Reader.readSpeechNBestLists(basePath + wsjPath,
 				trainingVocabulary);
 
+		// Optionally close the vocabulary: words seen fewer than -minCount times,
+		// or beyond the -maxVocab most frequent, are counted and scored as the
+		// unknown word. N-best lists are still filtered against every training
+		// word, so the WER test set does not change.
+		final Vocabulary vocabulary = argMap.containsKey("-minCount") || argMap.containsKey("-maxVocab")
+				? Vocabulary.build(trainingSentences,
+						argMap.containsKey("-minCount") ? Integer.parseInt(argMap.get("-minCount")) : 1,
+						argMap.containsKey("-maxVocab") ? Integer.parseInt(argMap.get("-maxVocab")) : Integer.MAX_VALUE)
+				: null;
+		if (vocabulary != null)
+			System.out.println("VOCABULARY: " + vocabulary.size() + " OF " + trainingVocabulary.size() + " WORDS KEPT");
+
+		// Optionally sweep the model configurations listed in a file instead
+		// (see EvaluationRunner), -threads at a time within -memory megabytes,
+		// writing the results table to -results (or standard output), or with
+		// -folds k cross-validate them over the training sentences
+		if (argMap.containsKey("-config")) {
+			int threads = argMap.containsKey("-threads") ? Integer.parseInt(argMap.get("-threads"))
+					: Runtime.getRuntime().availableProcessors();
+			long memory = argMap.containsKey("-memory") ? Long.parseLong(argMap.get("-memory")) << 20
+					: Runtime.getRuntime().maxMemory() / 2;
+			List<EvaluationRunner.ModelSpec> specs = EvaluationRunner.readSpecs(argMap.get("-config"));
+
+			if (argMap.containsKey("-folds")) {
+				int folds = Integer.parseInt(argMap.get("-folds"));
+				int maxOrder = 1;
+				for (EvaluationRunner.ModelSpec spec : specs)
+					maxOrder = Math.max(maxOrder, spec.order);
+				System.out.println("CROSS-VALIDATING " + specs.size() + " MODEL CONFIGURATIONS OVER " + folds
+						+ " FOLDS ON " + threads + " THREADS");
+				if (vocabulary != null)
+					System.out.println("NOTE: THE CLOSED VOCABULARY WAS BUILT FROM EVERY FOLD, SO HELD-OUT WORDS ARE NOT UNKNOWN");
+				List<CrossValidator.Result> results = new CrossValidator(trainingSentences, folds, maxOrder,
+						vocabulary, threads).run(specs);
+				if (argMap.containsKey("-results")) {
+					try (PrintStream out = new PrintStream(argMap.get("-results"), "UTF-8")) {
+						CrossValidator.writeResults(results, out);
+					}
+					System.out.println("Results written to " + argMap.get("-results"));
+				} else {
+					CrossValidator.writeResults(results, System.out);
+				}
+				return;
+			}
+
+			System.out.println("RUNNING " + specs.size() + " MODEL CONFIGURATIONS ON " + threads + " THREADS");
+			MetricsRegistry metrics = new MetricsRegistry();
+			EvaluationRunner runner = new EvaluationRunner(new ArrayList<>(trainingSentences),
+					new ArrayList<>(testSentences), speechNBestLists, vocabulary, threads, memory);
+			List<EvaluationRunner.Result> results = runner.run(specs, metrics);
+			if (argMap.containsKey("-results")) {
+				try (PrintStream out = new PrintStream(argMap.get("-results"), "UTF-8")) {
+					EvaluationRunner.writeResults(results, out);
+				}
+				System.out.println("Results written to " + argMap.get("-results"));
+			} else {
+				EvaluationRunner.writeResults(results, System.out);
+			}
+			if (argMap.containsKey("-metrics"))
+				metrics.writeTo(argMap.get("-metrics"));
+			return;
+		}
+
+		// Optionally predict the largest model's footprint before building anything
+		boolean footprint = argMap.containsKey("-footprint");
+		if (footprint) {
+			System.out.println("ESTIMATING FOOTPRINT FROM A 1/10 SAMPLE");
+			System.out.println(FootprintReport.estimate(5, trainingSentences, 10));
+		}
+
+		// Optionally count the quintgrams on disk, with this many n-grams per in-memory buffer
+		int externalBuffer = argMap.containsKey("-external") ? Integer.parseInt(argMap.get("-external")) : 0;
+
 		//build the language models
 		System.out.println("LOADING MODELS");
+		MetricsRegistry metrics = new MetricsRegistry();
+		// heap and footprint gauges and hit counting only when they are asked for
+		boolean instrumented = argMap.containsKey("-metrics") || argMap.containsKey("-footprint");
 		Map<String, LanguageModel> models = new LinkedHashMap<>();
 
 		LaplaceSmoother laplace = new LaplaceSmoother();
 
-		models.put("unigram", new NGramLanguageModel(1, trainingSentences, null));
-		System.out.println("UNIGRAM LOADED");
-		models.put("unigram-laplace", new NGramLanguageModel(1, trainingSentences, laplace ,null));
-		System.out.println("UNIGRAM-LAPLACE LOADED");
+		models.put("unigram", loadModel("unigram", () -> new NGramLanguageModel(1, trainingSentences, null, null, null, vocabulary), metrics, instrumented));
+		models.put("unigram-laplace", loadModel("unigram-laplace", () -> new NGramLanguageModel(1, trainingSentences, laplace, null, null, vocabulary), metrics, instrumented));
+
+
+		models.put("bigram", loadModel("bigram", () -> new NGramLanguageModel(2, trainingSentences, null, new double[]{0.7}, null, vocabulary), metrics, instrumented));
+		models.put("bigram-laplace", loadModel("bigram-laplace", () -> new NGramLanguageModel(2, trainingSentences, laplace, new double[]{0.6}, null, vocabulary), metrics, instrumented));
+
+		models.put("trigram", loadModel("trigram", () -> new NGramLanguageModel(3, trainingSentences, null, new double[]{0.5, 0.3}, null, vocabulary), metrics, instrumented));
+		models.put("trigram-laplace", loadModel("trigram-laplace", () -> new NGramLanguageModel(3, trainingSentences, laplace, new double[]{0.5, 0.3}, null, vocabulary), metrics, instrumented));
+
+		models.put("quadgram", loadModel("quadgram", () -> new NGramLanguageModel(4, trainingSentences, null, new double[]{0.28, 0.27, 0.17}, null, vocabulary), metrics, instrumented));
+		models.put("quadgram-laplace", loadModel("quadgram-laplace", () -> new NGramLanguageModel(4, trainingSentences, laplace, new double[]{0.26, 0.26, 0.18}, null, vocabulary), metrics, instrumented));
+
+		models.put("quintgram", loadModel("quintgram", () -> externalBuffer > 0
+				? countOnDisk(5, trainingSentences, externalBuffer, null, new double[]{0.3, 0.2, 0.15, 0.1}, vocabulary)
+				: new NGramLanguageModel(5, trainingSentences, null, new double[]{0.3, 0.2, 0.15, 0.1}, null, vocabulary), metrics, instrumented));
+		models.put("quintgram-laplace", loadModel("quintgram-laplace", () -> externalBuffer > 0
+				? countOnDisk(5, trainingSentences, externalBuffer, laplace, new double[]{0.3, 0.2, 0.15, 0.1}, vocabulary)
+				: new NGramLanguageModel(5, trainingSentences, laplace, new double[]{0.3, 0.2, 0.15, 0.1}, null, vocabulary), metrics, instrumented));
+
+		// Optionally checkpoint the quintgram's counts into the given directory,
+		// timing CounterCodec against default Java serialization
+		if (argMap.containsKey("-checkpoint")) {
+			NGramLanguageModel quintgram = (NGramLanguageModel) models.get("quintgram");
+			File directory = new File(argMap.get("-checkpoint"));
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new UncheckedIOException(new IOException("Cannot create " + directory));
+			System.out.println("\n--CHECKPOINT (" + directory + ")");
+			for (int order = 1; order <= quintgram.getOrder(); order++) {
+				File coded = new File(directory, "quintgram-" + order + ".counts");
+				File serialized = new File(directory, "quintgram-" + order + ".ser");
+				try {
+					Object counts = order == 1 ? quintgram.getUnigramCounter() : quintgram.getCounterMap(order);
+					long start = System.nanoTime();
+					if (order == 1)
+						CounterCodec.write(quintgram.getUnigramCounter(), coded);
+					else
+						CounterCodec.write(quintgram.getCounterMap(order), coded);
+					double codedWrite = (System.nanoTime() - start) / 1e9;
+					start = System.nanoTime();
+					int readSize = order == 1 ? CounterCodec.readCounter(coded).size()
+							: CounterCodec.readCounterMap(coded).totalSize();
+					double codedRead = (System.nanoTime() - start) / 1e9;
+					if (readSize != quintgram.getNGramCount(order))
+						throw new IllegalStateException("Read back " + readSize + " order " + order + " n-grams of "
+								+ quintgram.getNGramCount(order));
+
+					start = System.nanoTime();
+					try (ObjectOutputStream out = new ObjectOutputStream(
+							new BufferedOutputStream(new FileOutputStream(serialized)))) {
+						out.writeObject(counts);
+					}
+					double serializedWrite = (System.nanoTime() - start) / 1e9;
+					start = System.nanoTime();
+					try (ObjectInputStream in = new ObjectInputStream(
+							new BufferedInputStream(new FileInputStream(serialized)))) {
+						in.readObject();
+					}
+					double serializedRead = (System.nanoTime() - start) / 1e9;
 
+					DecimalFormat seconds = new DecimalFormat("0.000");
+					System.out.println("--------ORDER " + order + " WRITE/READ:   [" + seconds.format(serializedWrite)
+							+ "/" + seconds.format(serializedRead) + "s, " + serialized.length() + " bytes] -> ["
+							+ seconds.format(codedWrite) + "/" + seconds.format(codedRead) + "s, "
+							+ coded.length() + " bytes]");
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} catch (ClassNotFoundException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
 
-		models.put("bigram", new NGramLanguageModel(2, trainingSentences, new double[]{0.7}));
-		System.out.println("BIGRAM LOADED");
-		models.put("bigram-laplace", new NGramLanguageModel(2, trainingSentences, laplace, new double[]{0.6}));
-		System.out.println("BIGRAM-LAPLACE LOADED");
+		// Optionally check that every model's word probabilities sum to one
+		// after the histories halfway through the first k training sentences
+		if (argMap.containsKey("-normalization")) {
+			int k = Integer.parseInt(argMap.get("-normalization"));
+			List<List<String>> histories = new ArrayList<>();
+			for (List<String> sentence : trainingSentences) {
+				if (histories.size() == k)
+					break;
+				histories.add(sentence.subList(0, sentence.size() / 2));
+			}
+			System.out.println("\n--NORMALIZATION OVER " + histories.size() + " TRAINING HISTORIES");
+			for (Map.Entry<String, LanguageModel> model : models.entrySet()) {
+				double worst = 0.0;
+				for (List<String> history : histories)
+					worst = Math.max(worst, Math.abs(((NGramLanguageModel) model.getValue())
+							.getTotalProbability(history) - 1.0));
+				System.out.println("--------" + model.getKey().toUpperCase() + ": largest |sum - 1| [" + worst + "]");
+			}
+		}
 
-		models.put("trigram", new NGramLanguageModel(3, trainingSentences, new double[]{0.5, 0.3}));
-		System.out.println("TRIGRAM LOADED");
-		models.put("trigram-laplace", new NGramLanguageModel(3, trainingSentences, laplace, new double[]{0.5, 0.3}));
-		System.out.println("TRIGRAM-LAPLACE LOADED");
+		// Optionally time the quintgram's k most likely next words after every
+		// prefix of every test sentence
+		if (argMap.containsKey("-predict")) {
+			int k = Integer.parseInt(argMap.get("-predict"));
+			NGramLanguageModel quintgram = (NGramLanguageModel) models.get("quintgram");
+			MetricsRegistry.Histogram latency = metrics.histogram("lm_prediction_seconds", "model", "quintgram");
+			List<String> example = null, examplePrediction = null;
+			int queries = 0;
+			long start = System.nanoTime();
+			for (List<String> sentence : testSentences) {
+				for (int i = 0; i <= sentence.size(); i++) {
+					long queryStart = System.nanoTime();
+					List<String> prediction = quintgram.getMostLikelyNextWords(sentence.subList(0, i), k);
+					latency.recordNanos(System.nanoTime() - queryStart);
+					queries++;
+					if (example == null && i == 2) {
+						example = sentence.subList(0, i);
+						examplePrediction = prediction;
+					}
+				}
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println("\n--TOP " + k + " NEXT WORDS");
+			System.out.println("--------QUERIES:              [" + queries + "] in [" + seconds + "s, "
+					+ new DecimalFormat("0.0").format(seconds * 1e6 / queries) + "us each]");
+			if (example != null)
+				System.out.println("--------EXAMPLE:              " + example + " -> " + examplePrediction);
+		}
+
+		// Optionally mix the quintgram and bigram models evenly, then let the
+		// weights adapt online over the test sentences at the given rate
+		if (argMap.containsKey("-mixture") && vocabulary != null) {
+			System.out.println("-MIXTURE IGNORED: MIXTURES NEED OPEN VOCABULARIES, BUT -minCount OR -maxVocab CLOSED THEM");
+		} else if (argMap.containsKey("-mixture")) {
+			double rate = Double.parseDouble(argMap.get("-mixture"));
+			long start = System.nanoTime();
+			MixtureLanguageModel mixture = new MixtureLanguageModel(Arrays.asList(
+					(NGramLanguageModel) models.get("quintgram"), (NGramLanguageModel) models.get("bigram")),
+					new double[]{0.5, 0.5});
+			double buildSeconds = (System.nanoTime() - start) / 1e9;
+			double evenPerp = calculatePerplexity(mixture, testSentences, metrics.histogram("lm_sentence_seconds", "model", "mixture"));
+			mixture.setAdaptationRate(rate);
+			for (List<String> sentence : testSentences)
+				mixture.getSentenceProbability(sentence);
+			mixture.setAdaptationRate(0);
+			System.out.println("\n--MIXTURE OF QUINTGRAM AND BIGRAM (" + mixture.getBytes() + " bytes, built in ["
+					+ buildSeconds + "s])");
+			System.out.println("--------PERPLEXITY:           [" + evenPerp + "] -> ["
+					+ calculatePerplexity(mixture, testSentences) + "]");
+			System.out.println("--------WEIGHTS:              " + Arrays.toString(new double[]{0.5, 0.5}) + " -> "
+					+ Arrays.toString(mixture.getWeights()));
+		}
+
+		// Optionally move every model's n-gram tables off the heap
+		boolean offHeap = argMap.containsKey("-offheap");
+		if (offHeap) {
+			for (Map.Entry<String, LanguageModel> model : models.entrySet()) {
+				NGramLanguageModel nGramModel = (NGramLanguageModel) model.getValue();
+				nGramModel.moveOffHeap();
+				System.out.println(model.getKey().toUpperCase() + " MOVED OFF HEAP ("
+						+ nGramModel.getOffHeapBytes() + " bytes)");
+			}
+		}
 
-		models.put("quadgram", new NGramLanguageModel(4, trainingSentences, new double[]{0.28, 0.27, 0.17}));
-		System.out.println("QUADGRAM LOADED");
-		models.put("quadgram-laplace", new NGramLanguageModel(4, trainingSentences, laplace, new double[]{0.26, 0.26, 0.18}));
-		System.out.println("QUADGRAM-LAPLACE LOADED");
+		// Optionally merge every model's n-gram tables into one context trie,
+		// Elias-Fano compressed with "-trie succinct"
+		if (argMap.containsKey("-trie") && offHeap) {
+			System.out.println("-TRIE IGNORED: THE N-GRAM TABLES WERE ALREADY MOVED OFF HEAP BY -OFFHEAP");
+		} else if (argMap.containsKey("-trie")) {
+			boolean succinct = "succinct".equalsIgnoreCase(argMap.get("-trie"));
+			for (Map.Entry<String, LanguageModel> model : models.entrySet()) {
+				NGramLanguageModel nGramModel = (NGramLanguageModel) model.getValue();
+				// compare the tables above unigram, which are all the trie replaces
+				long before = 0, ngrams = 0;
+				for (FootprintReport.Row row : FootprintReport.of(model.getKey(), nGramModel).getRows()) {
+					if (row.order < 2)
+						continue;
+					before += row.currentBytes;
+					ngrams += row.ngrams;
+				}
+				if (ngrams == 0)
+					continue;
+				nGramModel.compactToTrie(succinct);
+				System.out.println(model.getKey().toUpperCase() + " COMPACTED TO A " + (succinct ? "SUCCINCT " : "")
+						+ "TRIE (" + before + " -> " + nGramModel.getTrieBytes() + " bytes, "
+						+ new DecimalFormat("0.00").format((double) before / ngrams) + " -> "
+						+ new DecimalFormat("0.00").format((double) nGramModel.getTrieBytes() / ngrams)
+						+ " bytes per n-gram)");
+			}
+		}
+
+		// Optionally retune every model's lambdas on the validation sentences,
+		// by EM ("-tune em") or a parallel grid search ("-tune grid")
+		if (argMap.containsKey("-tune")) {
+			boolean grid = "grid".equalsIgnoreCase(argMap.get("-tune"));
+			System.out.println("\n\n--LAMBDA TUNING (VALIDATION PERPLEXITY)");
+			for (Map.Entry<String, LanguageModel> model : models.entrySet()) {
+				NGramLanguageModel nGramModel = (NGramLanguageModel) model.getValue();
+				if (nGramModel.getOrder() < 2)
+					continue;
+				long start = System.nanoTime();
+				LambdaOptimizer optimizer = new LambdaOptimizer(nGramModel, validationSentences);
+				double before = optimizer.perplexity(nGramModel.getLambdas());
+				double[] lambdas = grid ? optimizer.gridSearch(0.05) : optimizer.expectationMaximization(100, 1e-4);
+				nGramModel.setLambdas(lambdas);
+				metrics.setGauge("lm_tuning_seconds", (System.nanoTime() - start) / 1e9, "model", model.getKey());
+				System.out.println("----" + model.getKey().toUpperCase() + ": " + Arrays.toString(lambdas)
+						+ " [" + before + "] -> [" + optimizer.perplexity(lambdas) + "]");
+			}
+		}
 
-		models.put("quintgram", new NGramLanguageModel(5, trainingSentences, new double[]{0.3, 0.2, 0.15, 0.1}));
-		System.out.println("QUINTGRAM LOADED");
-		models.put("quintgram-laplace", new NGramLanguageModel(5, trainingSentences, laplace, new double[]{0.3, 0.2, 0.15, 0.1}));
-		System.out.println("QUINTGRAM-LAPLACE LOADED");
+		if (footprint) {
+			System.out.println("\n\n--FOOTPRINT");
+			for (Map.Entry<String, LanguageModel> model : models.entrySet())
+				System.out.println(FootprintReport.of(model.getKey(), (NGramLanguageModel) model.getValue()));
+		}
 
 		//calculate and display their hub perplexity scores, and also track time taken;
 		System.out.println("\n\n--PERPLEXITY");
-		double 	uniPerp = calculatePerplexity(models.get("unigram"), testSentences),
-				uniLPerp = calculatePerplexity(models.get("unigram-laplace"), testSentences),
+		double 	uniPerp = calculatePerplexity(models.get("unigram"), testSentences, metrics.histogram("lm_sentence_seconds", "model", "unigram")),
+				uniLPerp = calculatePerplexity(models.get("unigram-laplace"), testSentences, metrics.histogram("lm_sentence_seconds", "model", "unigram-laplace")),
 
-				biPerp = calculatePerplexity(models.get("bigram"), testSentences),
-				biLPerp = calculatePerplexity(models.get("bigram-laplace"), testSentences),
+				biPerp = calculatePerplexity(models.get("bigram"), testSentences, metrics.histogram("lm_sentence_seconds", "model", "bigram")),
+				biLPerp = calculatePerplexity(models.get("bigram-laplace"), testSentences, metrics.histogram("lm_sentence_seconds", "model", "bigram-laplace")),
 
-				triPerp = calculatePerplexity(models.get("trigram"), testSentences),
-				triLPerp = calculatePerplexity(models.get("trigram-laplace"), testSentences),
+				triPerp = calculatePerplexity(models.get("trigram"), testSentences, metrics.histogram("lm_sentence_seconds", "model", "trigram")),
+				triLPerp = calculatePerplexity(models.get("trigram-laplace"), testSentences, metrics.histogram("lm_sentence_seconds", "model", "trigram-laplace")),
 
-				quadPerp = calculatePerplexity(models.get("quadgram"), testSentences),
-				quadLPerp = calculatePerplexity(models.get("quadgram-laplace"), testSentences),
+				quadPerp = calculatePerplexity(models.get("quadgram"), testSentences, metrics.histogram("lm_sentence_seconds", "model", "quadgram")),
+				quadLPerp = calculatePerplexity(models.get("quadgram-laplace"), testSentences, metrics.histogram("lm_sentence_seconds", "model", "quadgram-laplace")),
 
-				quintPerp = calculatePerplexity(models.get("quintgram"), testSentences),
-				quintLPerp = calculatePerplexity(models.get("quintgram-laplace"), testSentences);
+				quintPerp = calculatePerplexity(models.get("quintgram"), testSentences, metrics.histogram("lm_sentence_seconds", "model", "quintgram")),
+				quintLPerp = calculatePerplexity(models.get("quintgram-laplace"), testSentences, metrics.histogram("lm_sentence_seconds", "model", "quintgram-laplace"));
 
 		String perpOutMessage =
 								"----UNIGRAM\n" +
@@ -498,20 +1059,20 @@ public class LanguageModelTester {
 		System.out.println(perpOutMessage);
 
 		System.out.println("\n--WORD ERROR RATE");
-		double 	uniWER = calculateWordErrorRate(models.get("unigram"), speechNBestLists, false),
-				uniLWER = calculateWordErrorRate(models.get("unigram-laplace"), speechNBestLists, false),
+		double 	uniWER = calculateWordErrorRate(models.get("unigram"), speechNBestLists, false, metrics.histogram("lm_nbest_seconds", "model", "unigram")),
+				uniLWER = calculateWordErrorRate(models.get("unigram-laplace"), speechNBestLists, false, metrics.histogram("lm_nbest_seconds", "model", "unigram-laplace")),
 
-		 		biWER =  calculateWordErrorRate(models.get("bigram"), speechNBestLists, false),
-				biLWER = calculateWordErrorRate(models.get("bigram-laplace"), speechNBestLists, false),
+		 		biWER =  calculateWordErrorRate(models.get("bigram"), speechNBestLists, false, metrics.histogram("lm_nbest_seconds", "model", "bigram")),
+				biLWER = calculateWordErrorRate(models.get("bigram-laplace"), speechNBestLists, false, metrics.histogram("lm_nbest_seconds", "model", "bigram-laplace")),
 
-				triWER = calculateWordErrorRate(models.get("trigram"), speechNBestLists, true),
-				triLWER = calculateWordErrorRate(models.get("trigram-laplace"), speechNBestLists, false),
+				triWER = calculateWordErrorRate(models.get("trigram"), speechNBestLists, true, metrics.histogram("lm_nbest_seconds", "model", "trigram")),
+				triLWER = calculateWordErrorRate(models.get("trigram-laplace"), speechNBestLists, false, metrics.histogram("lm_nbest_seconds", "model", "trigram-laplace")),
 
-				quadWER = calculateWordErrorRate(models.get("quadgram"), speechNBestLists, false),
-				quadLWER = calculateWordErrorRate(models.get("quadgram-laplace"), speechNBestLists, false),
+				quadWER = calculateWordErrorRate(models.get("quadgram"), speechNBestLists, false, metrics.histogram("lm_nbest_seconds", "model", "quadgram")),
+				quadLWER = calculateWordErrorRate(models.get("quadgram-laplace"), speechNBestLists, false, metrics.histogram("lm_nbest_seconds", "model", "quadgram-laplace")),
 
-				quintWER = calculateWordErrorRate(models.get("quintgram"), speechNBestLists, false),
-				quintLWER = calculateWordErrorRate(models.get("quintgram-laplace"), speechNBestLists, false);
+				quintWER = calculateWordErrorRate(models.get("quintgram"), speechNBestLists, false, metrics.histogram("lm_nbest_seconds", "model", "quintgram")),
+				quintLWER = calculateWordErrorRate(models.get("quintgram-laplace"), speechNBestLists, false, metrics.histogram("lm_nbest_seconds", "model", "quintgram-laplace"));
 
 		String werOutMessage =
 				"----UNIGRAM\n" +
@@ -531,5 +1092,226 @@ public class LanguageModelTester {
 						"--------LAPLACE SMOOTHING:    [" + quintLWER + "]\n";
 
 		System.out.println(werOutMessage);
+
+		// Optionally compare the count-of-counts based smoothers at every order
+		if (argMap.containsKey("-smoothers")) {
+			System.out.println("\n--GOOD-TURING / WITTEN-BELL (PERPLEXITY, WER)");
+			Map<String, ISmoother> smoothers = new LinkedHashMap<>();
+			smoothers.put("goodturing", new GoodTuringSmoother());
+			smoothers.put("wittenbell", new WittenBellSmoother());
+			for (String name : new String[]{"unigram", "bigram", "trigram", "quadgram", "quintgram"}) {
+				NGramLanguageModel unsmoothed = (NGramLanguageModel) models.get(name);
+				for (Map.Entry<String, ISmoother> smoother : smoothers.entrySet()) {
+					String smoothedName = name + "-" + smoother.getKey();
+					LanguageModel smoothed = loadModel(smoothedName, () -> new NGramLanguageModel(unsmoothed.getOrder(),
+							trainingSentences, smoother.getValue(), unsmoothed.getLambdas(), null, vocabulary), metrics, instrumented);
+					models.put(smoothedName, smoothed);
+					System.out.println("----" + smoothedName.toUpperCase() + ": ["
+							+ calculatePerplexity(smoothed, testSentences, metrics.histogram("lm_sentence_seconds", "model", smoothedName))
+							+ "] [" + calculateWordErrorRate(smoothed, speechNBestLists, false,
+									metrics.histogram("lm_nbest_seconds", "model", smoothedName)) + "]");
+				}
+			}
+		}
+
+		// Optionally compare the quintgram against a pruned one, using the
+		// given relative-entropy threshold on top of dropping singleton 3-5-grams
+		if (argMap.containsKey("-prune")) {
+			double threshold = Double.parseDouble(argMap.get("-prune"));
+			NGramLanguageModel pruned = (NGramLanguageModel) loadModel("quintgram-pruned",
+					() -> new NGramLanguageModel(5, trainingSentences, null, new double[]{0.3, 0.2, 0.15, 0.1},
+							new NGramPruner(new double[]{1, 2, 2, 2}, threshold), vocabulary), metrics, instrumented);
+			models.put("quintgram-pruned", pruned);
+			double prunedPerp = calculatePerplexity(pruned, testSentences,
+					metrics.histogram("lm_sentence_seconds", "model", "quintgram-pruned"));
+			NGramPruner.Report report = pruned.getPruningReport();
+			metrics.setGauge("lm_pruned_ngrams", report.getRemoved(), "model", "quintgram-pruned");
+
+			System.out.println("\n--PRUNING (THRESHOLD " + threshold + ")");
+			System.out.print(report);
+			System.out.println("--------PERPLEXITY:           [" + quintPerp + "] -> [" + prunedPerp + "]");
+			System.out.println("--------MEMORY:               ["
+					+ FootprintReport.of("quintgram", (NGramLanguageModel) models.get("quintgram")).getCurrentBytes()
+					+ "] -> [" + FootprintReport.of("quintgram-pruned", pruned).getCurrentBytes() + "] bytes");
+		}
+
+		// Optionally compare a class 5-gram model over the given number of
+		// exchange-clustered classes, interpolated with the trigram model
+		if (argMap.containsKey("-classes")) {
+			int classCount = Integer.parseInt(argMap.get("-classes"));
+			long start = System.nanoTime();
+			Map<String, Integer> classes = WordClusterer.cluster(trainingSentences, classCount, 20);
+			metrics.setGauge("lm_clustering_seconds", (System.nanoTime() - start) / 1e9, "model", "class");
+			NGramLanguageModel trigram = (NGramLanguageModel) models.get("trigram");
+			ClassLanguageModel classModel = (ClassLanguageModel) loadModel("class", () -> new ClassLanguageModel(
+					trainingSentences, classes, 5, new double[]{0.3, 0.2, 0.15, 0.1}, trigram, 0.6), metrics, instrumented);
+			models.put("class", classModel);
+
+			long classBytes = FootprintReport.of("class", classModel.getClassModel()).getCurrentBytes()
+					+ FootprintReport.of("trigram", trigram).getCurrentBytes();
+			System.out.println("\n--CLASS MODEL (" + classCount + " CLASSES)");
+			System.out.println("--------PERPLEXITY:           [" + quintPerp + "] -> [" + calculatePerplexity(classModel,
+					testSentences, metrics.histogram("lm_sentence_seconds", "model", "class")) + "]");
+			System.out.println("--------WORD ERROR RATE:      [" + quintWER + "] -> [" + calculateWordErrorRate(classModel,
+					speechNBestLists, false, metrics.histogram("lm_nbest_seconds", "model", "class")) + "]");
+			System.out.println("--------MEMORY:               ["
+					+ FootprintReport.of("quintgram", (NGramLanguageModel) models.get("quintgram")).getCurrentBytes()
+					+ "] -> [" + classBytes + "] bytes");
+		}
+
+		// Optionally compare an unbounded-order model, weighted against unigrams by the given lambda
+		if (argMap.containsKey("-infinigram")) {
+			double lambda = Double.parseDouble(argMap.get("-infinigram"));
+			LanguageModel infiniGram = loadModel("infinigram",
+					() -> new InfiniGramLanguageModel(trainingSentences, lambda), metrics, instrumented);
+			models.put("infinigram", infiniGram);
+			System.out.println("\n--INFINI-GRAM (LAMBDA " + lambda + ")");
+			System.out.println("--------PERPLEXITY:           [" + calculatePerplexity(infiniGram, testSentences,
+					metrics.histogram("lm_sentence_seconds", "model", "infinigram")) + "]");
+			System.out.println("--------WORD ERROR RATE:      [" + calculateWordErrorRate(infiniGram, speechNBestLists,
+					false, metrics.histogram("lm_nbest_seconds", "model", "infinigram")) + "]");
+		}
+
+		// Optionally reload the N-best lists on the given number of threads,
+		// streaming them into the quintgram's word error rate
+		if (argMap.containsKey("-nbestThreads")) {
+			int threads = Integer.parseInt(argMap.get("-nbestThreads"));
+			Vocabulary nBestVocabulary = new Vocabulary();
+			for (String word : trainingVocabulary)
+				nBestVocabulary.index(word);
+			NBestListLoader loader = new NBestListLoader(basePath + wsjPath, nBestVocabulary, threads);
+			int[] counted = new int[1];
+			long start = System.nanoTime();
+			double streamedWER = calculateWordErrorRate(models.get("quintgram"), loader,
+					metrics.histogram("lm_nbest_seconds", "model", "quintgram-streamed"), counted);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			metrics.setGauge("lm_nbest_lists_per_second", counted[0] / seconds, "threads", Integer.toString(threads));
+			System.out.println("\n--STREAMED N-BEST LISTS (" + threads + " THREADS)");
+			System.out.println("--------LISTS:                [" + speechNBestLists.size() + "] -> [" + counted[0] + "]");
+			System.out.println("--------WORD ERROR RATE:      [" + quintWER + "] -> [" + streamedWER + "]");
+		}
+
+		// Optionally rescore the quintgram with the reading, scoring and adding
+		// up overlapped in a pipeline, scoring on the given number of threads
+		if (argMap.containsKey("-pipeline")) {
+			int threads = Integer.parseInt(argMap.get("-pipeline"));
+			ScoringPipeline pipeline = new ScoringPipeline(threads);
+			LanguageModel quintgram = models.get("quintgram");
+			long start = System.nanoTime();
+			double pipelinedPerp = calculatePerplexity(quintgram, testSentences,
+					metrics.histogram("lm_sentence_seconds", "model", "quintgram-pipelined"), pipeline);
+			double perplexitySeconds = (System.nanoTime() - start) / 1e9;
+			start = System.nanoTime();
+			double pipelinedWER = calculateWordErrorRate(quintgram, speechNBestLists,
+					metrics.histogram("lm_nbest_seconds", "model", "quintgram-pipelined"), pipeline);
+			double werSeconds = (System.nanoTime() - start) / 1e9;
+			metrics.setGauge("lm_evaluation_seconds", perplexitySeconds + werSeconds, "model", "quintgram-pipelined");
+			System.out.println("\n--PIPELINED (" + threads + " THREADS)");
+			System.out.println("--------PERPLEXITY:           [" + quintPerp + "] -> [" + pipelinedPerp + "] in ["
+					+ perplexitySeconds + "s]");
+			System.out.println("--------WORD ERROR RATE:      [" + quintWER + "] -> [" + pipelinedWER + "] in ["
+					+ werSeconds + "s]");
+		}
+
+		// Optionally rescore the quintgram over word lattices built from the
+		// N-best lists rather than over the lists themselves
+		if (argMap.containsKey("-lattice")) {
+			NGramLanguageModel quintgram = (NGramLanguageModel) models.get("quintgram");
+			long hypotheses = 0, words = 0, nodes = 0, arcs = 0;
+			for (SpeechNBestList speechNBestList : speechNBestLists) {
+				for (List<String> guess : speechNBestList.getNBestSentences()) {
+					hypotheses++;
+					words += guess.size() + 1;
+				}
+				WordLattice lattice = WordLattice.fromNBestList(speechNBestList);
+				nodes += lattice.getNodeCount();
+				arcs += lattice.getArcCount();
+			}
+			long start = System.nanoTime();
+			double nBestWER = calculateWordErrorRate(quintgram, speechNBestLists, false);
+			double nBestSeconds = (System.nanoTime() - start) / 1e9;
+			start = System.nanoTime();
+			double latticeWER = calculateLatticeWordErrorRate(quintgram, speechNBestLists,
+					metrics.histogram("lm_nbest_seconds", "model", "quintgram-lattice"));
+			double latticeSeconds = (System.nanoTime() - start) / 1e9;
+			System.out.println("\n--WORD LATTICES");
+			System.out.println("--------SIZE:                 [" + hypotheses + " hypotheses, " + words + " words] -> ["
+					+ nodes + " nodes, " + arcs + " arcs]");
+			System.out.println("--------WORD ERROR RATE:      [" + nBestWER + "] in [" + nBestSeconds + "s] -> ["
+					+ latticeWER + "] in [" + latticeSeconds + "s]");
+		}
+
+		// Optionally bootstrap confidence intervals for each order's perplexity
+		// and word error rate from the given number of resamples, and test
+		// whether each order beats the one below it
+		if (argMap.containsKey("-bootstrap")) {
+			Bootstrap bootstrap = new Bootstrap(Integer.parseInt(argMap.get("-bootstrap")));
+			String[] orders = { "unigram", "bigram", "trigram", "quadgram", "quintgram" };
+			Bootstrap.Scores[] perplexities = new Bootstrap.Scores[orders.length];
+			Bootstrap.Scores[] errorRates = new Bootstrap.Scores[orders.length];
+			for (int i = 0; i < orders.length; i++) {
+				perplexities[i] = scorePerplexity(models.get(orders[i]), testSentences);
+				errorRates[i] = scoreWordErrorRate(models.get(orders[i]), speechNBestLists);
+			}
+
+			long start = System.nanoTime();
+			System.out.println("\n--BOOTSTRAP (" + bootstrap.getReplicates() + " REPLICATES, "
+					+ Math.round(bootstrap.getConfidence() * 100) + "% INTERVALS)");
+			for (int i = 0; i < orders.length; i++) {
+				System.out.println("--" + orders[i].toUpperCase());
+				System.out.println("--------PERPLEXITY:           [" + bootstrap.confidenceInterval(perplexities[i]) + "]");
+				System.out.println("--------WORD ERROR RATE:      [" + bootstrap.confidenceInterval(errorRates[i]) + "]");
+				if (i == 0)
+					continue;
+				System.out.println("--------VS " + orders[i - 1].toUpperCase() + " PERPLEXITY:    ["
+						+ bootstrap.compare(perplexities[i], perplexities[i - 1]) + "]");
+				System.out.println("--------VS " + orders[i - 1].toUpperCase() + " WORD ERROR RATE: ["
+						+ bootstrap.compare(errorRates[i], errorRates[i - 1]) + "]");
+			}
+			metrics.setGauge("lm_bootstrap_seconds", (System.nanoTime() - start) / 1e9);
+		}
+
+		// Optionally score a model served by a LanguageModelServer ("-remote host:port")
+		if (argMap.containsKey("-remote")) {
+			String[] address = argMap.get("-remote").split(":");
+			try (RemoteLanguageModel remote = new RemoteLanguageModel(address[0], Integer.parseInt(address[1]))) {
+				System.out.println("\n--REMOTE (" + argMap.get("-remote") + ")");
+				System.out.println("--------PERPLEXITY:           [" + calculatePerplexity(remote, testSentences,
+						metrics.histogram("lm_sentence_seconds", "model", "remote")) + "]");
+				System.out.println("--------WORD ERROR RATE:      [" + calculateWordErrorRate(remote, speechNBestLists,
+						false, metrics.histogram("lm_nbest_seconds", "model", "remote")) + "]");
+			}
+		}
+
+		// Optionally split an unsmoothed quintgram by history across the given
+		// number of LanguageModelServer processes on this machine, and score it
+		// through a ShardedLanguageModel, which should match the quintgram
+		if (argMap.containsKey("-shards") && vocabulary != null) {
+			System.out.println("-SHARDS IGNORED: SHARDS HAVE OPEN VOCABULARIES, BUT -minCount OR -maxVocab CLOSED THE QUINTGRAM'S");
+		} else if (argMap.containsKey("-shards")) {
+			int shardCount = Integer.parseInt(argMap.get("-shards"));
+			try (ShardedLanguageModel sharded = ShardedLanguageModel.startLocalShards(basePath, 5, shardCount)) {
+				System.out.println("\n--SHARDED (" + shardCount + " LOCAL SHARDS)");
+				System.out.println("--------PERPLEXITY:           [" + quintPerp + "] -> [" + calculatePerplexity(sharded,
+						testSentences, metrics.histogram("lm_sentence_seconds", "model", "sharded")) + "]");
+				System.out.println("--------WORD ERROR RATE:      [" + quintWER + "] -> [" + calculateWordErrorRate(sharded,
+						speechNBestLists, false, metrics.histogram("lm_nbest_seconds", "model", "sharded")) + "]");
+			}
+		}
+
+		for (Map.Entry<String, LanguageModel> model : models.entrySet()) {
+			if (model.getValue() instanceof NGramLanguageModel)
+				((NGramLanguageModel) model.getValue()).reportMetrics(metrics, model.getKey());
+		}
+		if (argMap.containsKey("-metrics")) {
+			metrics.writeTo(argMap.get("-metrics"));
+			System.out.println("Metrics written to " + argMap.get("-metrics"));
+		}
+
+		if (offHeap) {
+			for (LanguageModel model : models.values())
+				if (model instanceof NGramLanguageModel)
+					((NGramLanguageModel) model).close();
+		}
 	}
 }
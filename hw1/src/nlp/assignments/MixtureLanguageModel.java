@@ -0,0 +1,259 @@
+package nlp.assignments;
+
+import nlp.langmodel.LanguageModel;
+import nlp.util.Counter;
+import nlp.util.CounterMap;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A mixture of interpolated n-gram models, e.g. one per domain: a word's probability is the weighted sum of each
+ * component's own (interpolated) probability of it, so sentences get the same probabilities as scoring every
+ * component separately and mixing the results.
+ *
+ * The components' vocabularies are aligned once, into shared word ids, and their n-gram tables laid over a single
+ * reversed-context trie (see ContextTrie) holding every history and following word seen by any of them. Each
+ * component keeps its probabilities and backoff weights in arrays parallel to the trie's, so a token takes one walk
+ * down the trie and one search per order, and reads every component's probability at the position found, rather
+ * than one set of hash lookups per component.
+ *
+ * The mixture weights can follow the traffic: adapt() takes a step of online EM towards the share of each component
+ * in explaining a sentence, and with an adaptation rate set, every scored sentence does so.
+ */
+public class MixtureLanguageModel implements LanguageModel {
+
+    private final int n, components;
+    private final int[] orders;
+    private final double[][] componentWeights;
+    private final boolean[] unseenMass;
+
+    private final Vocabulary vocabulary;
+    private final ContextTrie trie;
+    //by component: probabilities parallel to the trie's words, backoff weights by node, unigrams by shared id
+    private final double[][] probabilities, heldBack, unigrams;
+    private final double[] unknownProbabilities;
+
+    private volatile double[] weights;
+    private double adaptationRate;
+
+    /**
+     * Mixes open-vocabulary models whose n-gram tables are still on the heap, with the given weights (which should sum
+     * to one). Each component's lambdas are read now, so later changes to them are not seen.
+     */
+    public MixtureLanguageModel(List<NGramLanguageModel> models, double[] weights) {
+        if (models.isEmpty() || models.size() != weights.length)
+            throw new IllegalArgumentException("Expected a weight for each of one or more models");
+        components = models.size();
+        orders = new int[components];
+        componentWeights = new double[components][];
+        unseenMass = new boolean[components];
+        int maxOrder = 1;
+        for (int c = 0; c < components; c++) {
+            NGramLanguageModel model = models.get(c);
+            if (!model.hasCounterMaps() || model.hasClosedVocabulary())
+                throw new IllegalArgumentException("Models must be open and have their tables on the heap");
+            orders[c] = model.getOrder();
+            componentWeights[c] = LambdaOptimizer.toWeights(model.getLambdas());
+            unseenMass[c] = model.reservesUnseenMass();
+            maxOrder = Math.max(maxOrder, orders[c]);
+        }
+        n = maxOrder;
+        this.weights = weights.clone();
+
+        //shared ids, in the same leading order as NGramLanguageModel's own
+        vocabulary = new Vocabulary();
+        vocabulary.index(NGramLanguageModel.unknown);
+        vocabulary.index(NGramLanguageModel.unseen);
+        vocabulary.index(NGramLanguageModel.start);
+        vocabulary.index(NGramLanguageModel.stop);
+        for (NGramLanguageModel model : models)
+            for (String word : model.getUnigramCounter().keySet()) vocabulary.index(word);
+
+        //the trie over every component's n-grams (and histories, even if only the unseen key follows one), whose own
+        //values are unused
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CounterMap<String, String>[] union = new CounterMap[n + 1];
+        for (int order = 2; order <= n; order++) {
+            union[order] = new CounterMap<>();
+            for (NGramLanguageModel model : models) {
+                if (order > model.getOrder()) continue;
+                CounterMap<String, String> counterMap = model.getCounterMap(order);
+                for (String context : counterMap.keySet())
+                    for (String word : counterMap.getCounter(context).keySet())
+                        union[order].setCount(context, word, 1.0);
+            }
+        }
+        trie = new ContextTrie(union, vocabulary);
+
+        probabilities = new double[components][];
+        heldBack = new double[components][];
+        unigrams = new double[components][];
+        unknownProbabilities = new double[components];
+        for (int c = 0; c < components; c++) {
+            NGramLanguageModel model = models.get(c);
+            probabilities[c] = new double[trie.words.length];
+            heldBack[c] = new double[trie.heldBack.length];
+            for (int order = 2; order <= orders[c]; order++) {
+                CounterMap<String, String> counterMap = model.getCounterMap(order);
+                for (String context : counterMap.keySet()) {
+                    int node = node(context);
+                    for (Map.Entry<String, Double> entry : counterMap.getCounter(context).getEntrySet()) {
+                        if (entry.getKey().equals(NGramLanguageModel.unseen)) heldBack[c][node] = entry.getValue();
+                        else probabilities[c][trie.wordIndex(node, vocabulary.indexOf(entry.getKey()))] = entry.getValue();
+                    }
+                }
+            }
+
+            //unigrams with the component's unknown word probability in place of words it has not seen
+            Counter<String> counter = model.getUnigramCounter();
+            unknownProbabilities[c] = counter.getCount(NGramLanguageModel.unknown);
+            unigrams[c] = new double[vocabulary.size()];
+            for (int id = 0; id < vocabulary.size(); id++) {
+                double unigram = counter.getCount(vocabulary.word(id));
+                unigrams[c][id] = unigram == 0 ? unknownProbabilities[c] : unigram;
+            }
+        }
+    }
+
+    private int node(String context) {
+        String[] history = context.split(" ");
+        int node = 0;
+        for (int b = history.length - 1; b >= 0 && node >= 0; b--)
+            node = trie.child(node, vocabulary.indexOf(history[b]));
+        return node;
+    }
+
+    /**
+     * Fills each component's probability of the word ids[i] given the ids before it, from one walk down the trie
+     */
+    private void getComponentProbabilities(int[] ids, int i, double[][] rows, double[] result) {
+        int word = ids[i];
+        for (int c = 0; c < components; c++)
+            rows[c][orders[c] - 1] = word < 0 ? unknownProbabilities[c] : unigrams[c][word];
+
+        int node = 0;
+        for (int order = 2; order <= n; order++) {
+            int previous = ids[i - order + 1];
+            node = node < 0 || previous < 0 ? -1 : trie.child(node, previous);
+            int j = node < 0 || word < 0 ? -1 : trie.wordIndex(node, word);
+            for (int c = 0; c < components; c++) {
+                if (order > orders[c]) continue;
+                double probability = 0.0;
+                if (node >= 0) {
+                    if (j >= 0) probability = probabilities[c][j];
+                    if (probability == 0 && unseenMass[c])
+                        probability = heldBack[c][node] * rows[c][orders[c] - 1];
+                }
+                rows[c][orders[c] - order] = probability;
+            }
+        }
+
+        //interpolated highest order first, as NGramLanguageModel does, so each matches the component exactly
+        for (int c = 0; c < components; c++) {
+            double probability = 0.0;
+            for (int k = 0; k < orders[c]; k++) probability += componentWeights[c][k] * rows[c][k];
+            result[c] = probability;
+        }
+    }
+
+    /**
+     * Shared ids of the sentence padded with start symbols and ended with the stop symbol, -1 for unseen words
+     */
+    private int[] encode(List<String> sentence) {
+        int[] ids = new int[n - 1 + sentence.size() + 1];
+        int startId = vocabulary.indexOf(NGramLanguageModel.start);
+        for (int b = 0; b < n - 1; b++) ids[b] = startId;
+        for (int k = 0; k < sentence.size(); k++) ids[n - 1 + k] = vocabulary.indexOf(sentence.get(k));
+        ids[ids.length - 1] = vocabulary.indexOf(NGramLanguageModel.stop);
+        return ids;
+    }
+
+    @Override
+    public double getSentenceProbability(List<String> sentence) {
+        double[] weights = this.weights;
+        int[] ids = encode(sentence);
+        double[][] rows = newRows();
+        double[] componentProbabilities = new double[components], posteriors = new double[components];
+
+        double result = 1.0;
+        for (int i = n - 1; i < ids.length; i++) {
+            getComponentProbabilities(ids, i, rows, componentProbabilities);
+            double probability = 0.0;
+            for (int c = 0; c < components; c++) probability += weights[c] * componentProbabilities[c];
+            result *= probability;
+            if (adaptationRate > 0 && probability > 0)
+                for (int c = 0; c < components; c++)
+                    posteriors[c] += weights[c] * componentProbabilities[c] / probability;
+        }
+        if (adaptationRate > 0) step(posteriors, ids.length - n + 1, adaptationRate);
+        return result;
+    }
+
+    /**
+     * Takes a step of online EM on the sentence: moves the weights, by the given rate, towards each component's
+     * average posterior share of the sentence's tokens
+     */
+    public void adapt(List<String> sentence, double rate) {
+        double[] weights = this.weights;
+        int[] ids = encode(sentence);
+        double[][] rows = newRows();
+        double[] componentProbabilities = new double[components], posteriors = new double[components];
+        for (int i = n - 1; i < ids.length; i++) {
+            getComponentProbabilities(ids, i, rows, componentProbabilities);
+            double probability = 0.0;
+            for (int c = 0; c < components; c++) probability += weights[c] * componentProbabilities[c];
+            if (probability == 0) continue;
+            for (int c = 0; c < components; c++)
+                posteriors[c] += weights[c] * componentProbabilities[c] / probability;
+        }
+        step(posteriors, ids.length - n + 1, rate);
+    }
+
+    private synchronized void step(double[] posteriors, int tokens, double rate) {
+        double[] adapted = weights.clone();
+        for (int c = 0; c < components; c++) adapted[c] = (1 - rate) * adapted[c] + rate * posteriors[c] / tokens;
+        weights = adapted;
+    }
+
+    private double[][] newRows() {
+        double[][] rows = new double[components][];
+        for (int c = 0; c < components; c++) rows[c] = new double[orders[c]];
+        return rows;
+    }
+
+    public double[] getWeights() {
+        return weights.clone();
+    }
+
+    public synchronized void setWeights(double[] weights) {
+        if (weights.length != components)
+            throw new IllegalArgumentException("Expected " + components + " weights, got " + weights.length);
+        this.weights = weights.clone();
+    }
+
+    /**
+     * With a rate above zero, every sentence scored also takes a step of adapt() at that rate (after it is scored),
+     * so the weights follow recent traffic; zero, the default, keeps them fixed
+     */
+    public void setAdaptationRate(double adaptationRate) {
+        if (adaptationRate < 0 || adaptationRate > 1)
+            throw new IllegalArgumentException("Adaptation rate must be in [0, 1]");
+        this.adaptationRate = adaptationRate;
+    }
+
+    /**
+     * The bytes taken by the shared trie and every component's arrays laid over it
+     */
+    public long getBytes() {
+        long bytes = trie.bytes();
+        for (int c = 0; c < components; c++)
+            bytes += 8L * (probabilities[c].length + heldBack[c].length + unigrams[c].length) + 3 * 16;
+        return bytes;
+    }
+
+    @Override
+    public List<String> generateSentence() {
+        return null;
+    }
+}
@@ -0,0 +1,243 @@
+package nlp.assignments;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Loads a directory of speech N-best lists (the wsj_n_bst layout SpeechNBestList.Reader reads: REF.txt holding each
+ * utterance's correct sentence followed by its id in parentheses, then per utterance id a file of hypotheses, one per
+ * line, and a .acc file of their acoustic scores, one per line) on several threads, and streams them to a consumer.
+ *
+ * Utterances are parsed in parallel, a bounded window of them at a time, and handed over in REF.txt order on the
+ * calling thread, so memory is bounded by the window rather than the directory. Words are encoded straight to int
+ * ids against a fixed vocabulary, which is only read while loading so can be shared by every thread. As with
+ * SpeechNBestList.Reader, hypotheses with words outside the vocabulary are dropped, as are utterances whose correct
+ * sentence has any; a hypothesis listed more than once keeps its best acoustic score.
+ */
+public class NBestListLoader {
+
+    /**
+     * One utterance's N-best list, as word ids
+     */
+    public static class EncodedNBestList {
+        private final Vocabulary vocabulary;
+        private final String id;
+        private final int[] correctSentence;
+        private final int[][] hypotheses;
+        private final double[] acousticScores;
+
+        EncodedNBestList(Vocabulary vocabulary, String id, int[] correctSentence, int[][] hypotheses,
+                         double[] acousticScores) {
+            this.vocabulary = vocabulary;
+            this.id = id;
+            this.correctSentence = correctSentence;
+            this.hypotheses = hypotheses;
+            this.acousticScores = acousticScores;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public int size() {
+            return hypotheses.length;
+        }
+
+        public int[] getCorrectIds() {
+            return correctSentence;
+        }
+
+        public int[] getHypothesisIds(int i) {
+            return hypotheses[i];
+        }
+
+        public double getAcousticScore(int i) {
+            return acousticScores[i];
+        }
+
+        /**
+         * The correct sentence as words, decoded as it is read
+         */
+        public List<String> getCorrectSentence() {
+            return decode(correctSentence);
+        }
+
+        /**
+         * The i-th hypothesis as words, decoded as it is read
+         */
+        public List<String> getHypothesis(int i) {
+            return decode(hypotheses[i]);
+        }
+
+        private List<String> decode(int[] ids) {
+            return new AbstractList<String>() {
+                @Override
+                public String get(int index) {
+                    return vocabulary.word(ids[index]);
+                }
+
+                @Override
+                public int size() {
+                    return ids.length;
+                }
+            };
+        }
+    }
+
+    private final File directory;
+    private final Vocabulary vocabulary;
+    private final int threads;
+
+    /**
+     * @param vocabulary the words hypotheses may use; must not be added to while loading
+     * @param threads how many files to parse at once
+     */
+    public NBestListLoader(String path, Vocabulary vocabulary, int threads) {
+        this.directory = new File(path);
+        this.vocabulary = vocabulary;
+        this.threads = threads;
+    }
+
+    /**
+     * Reads REF.txt: each utterance id and its correct sentence, in file order
+     */
+    private Map<String, String[]> readCorrectSentences() throws IOException {
+        Map<String, String[]> correctSentences = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(new File(directory, "REF.txt").toPath(),
+                StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int open = line.lastIndexOf('('), close = line.lastIndexOf(')');
+                if (open < 0 || close < open) continue;
+                correctSentences.put(line.substring(open + 1, close).trim(), split(line.substring(0, open)));
+            }
+        }
+        return correctSentences;
+    }
+
+    private static String[] split(String line) {
+        String trimmed = line.trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    }
+
+    /**
+     * The words as ids, or null if any is outside the vocabulary
+     */
+    private int[] encode(String[] words) {
+        int[] ids = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            ids[i] = vocabulary.indexOf(words[i]);
+            if (ids[i] < 0) return null;
+        }
+        return ids;
+    }
+
+    /**
+     * Parses one utterance's hypothesis and score files, or returns null if its correct sentence is out of vocabulary
+     */
+    private EncodedNBestList load(String id, String[] correctWords) throws IOException {
+        int[] correctSentence = encode(correctWords);
+        if (correctSentence == null) return null;
+
+        List<String> hypothesisLines = Files.readAllLines(new File(directory, id).toPath(), StandardCharsets.UTF_8);
+        List<String> scoreLines = Files.readAllLines(new File(directory, id + ".acc").toPath(),
+                StandardCharsets.UTF_8);
+        if (hypothesisLines.size() != scoreLines.size())
+            throw new IOException("Utterance " + id + " has " + hypothesisLines.size() + " hypotheses but "
+                    + scoreLines.size() + " acoustic scores");
+
+        //index each distinct hypothesis by its words, single-spaced
+        Map<String, Integer> seen = new HashMap<>();
+        List<int[]> hypotheses = new ArrayList<>();
+        double[] acousticScores = new double[hypothesisLines.size()];
+        for (int i = 0; i < hypothesisLines.size(); i++) {
+            String[] words = split(hypothesisLines.get(i));
+            int[] ids = encode(words);
+            if (ids == null) continue;
+            double score = Double.parseDouble(scoreLines.get(i).trim());
+
+            String key = String.join(" ", words);
+            Integer index = seen.get(key);
+            if (index == null) {
+                seen.put(key, hypotheses.size());
+                acousticScores[hypotheses.size()] = score;
+                hypotheses.add(ids);
+            } else {
+                acousticScores[index] = Math.max(acousticScores[index], score);
+            }
+        }
+        return new EncodedNBestList(vocabulary, id, correctSentence, hypotheses.toArray(new int[0][]),
+                Arrays.copyOf(acousticScores, hypotheses.size()));
+    }
+
+    /**
+     * Loads every N-best list in the directory, passing each to the consumer on this thread in REF.txt order.
+     * Returns how many were passed on.
+     */
+    public int forEach(Consumer<EncodedNBestList> consumer) {
+        Map<String, String[]> correctSentences;
+        try {
+            correctSentences = readCorrectSentences();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Deque<Future<EncodedNBestList>> window = new ArrayDeque<>();
+        int windowSize = threads * 4, loaded = 0;
+        try {
+            for (Map.Entry<String, String[]> utterance : correctSentences.entrySet()) {
+                if (window.size() == windowSize) loaded += pass(window.removeFirst(), consumer);
+                window.addLast(pool.submit(() -> load(utterance.getKey(), utterance.getValue())));
+            }
+            while (!window.isEmpty()) loaded += pass(window.removeFirst(), consumer);
+        } finally {
+            pool.shutdownNow();
+        }
+        return loaded;
+    }
+
+    private static int pass(Future<EncodedNBestList> future, Consumer<EncodedNBestList> consumer) {
+        EncodedNBestList list;
+        try {
+            list = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw new UncheckedIOException((IOException) e.getCause());
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+        if (list == null || list.size() == 0) return 0;
+        consumer.accept(list);
+        return 1;
+    }
+
+    /**
+     * Loads every N-best list in the directory into memory
+     */
+    public List<EncodedNBestList> loadAll() {
+        List<EncodedNBestList> lists = new ArrayList<>();
+        forEach(lists::add);
+        return lists;
+    }
+}
@@ -0,0 +1,73 @@
+package nlp.assignments;
+
+import nlp.util.Counter;
+import nlp.util.CounterMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Raw (unsmoothed, unnormalized) n-gram counts of every order up to some maximum, counted as NGramLanguageModel
+ * counts its training sentences: each sentence padded with start symbols and ended with a stop symbol, and the order
+ * k table keyed by the k-1 words of history. A history's counts do not depend on the order of the model counting
+ * them, so these serve a model of any order up to the maximum.
+ *
+ * Only read once counted, so may be shared between threads building models from it.
+ */
+class NGramCounts {
+
+    final int maxOrder;
+    final Counter<String> unigrams = new Counter<>();
+    //byOrder[k] holds the order k n-grams, for k from 2 up
+    final CounterMap<String, String>[] byOrder;
+    long tokens;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    NGramCounts(int maxOrder) {
+        this.maxOrder = maxOrder;
+        byOrder = new CounterMap[maxOrder + 1];
+        for (int order = 2; order <= maxOrder; order++) byOrder[order] = new CounterMap<>();
+    }
+
+    /**
+     * Counts the sentences, with words outside the closed vocabulary (if not null) counted as the unknown word
+     */
+    static NGramCounts count(int maxOrder, Iterable<List<String>> sentences, Vocabulary closedVocabulary) {
+        NGramCounts counts = new NGramCounts(maxOrder);
+        String[] previousWords = new String[maxOrder - 1];
+        for (List<String> sentence : sentences) {
+            List<String> stoppedSentence = new ArrayList<>(closedVocabulary == null ? sentence
+                    : closedVocabulary.map(sentence));
+            stoppedSentence.add(NGramLanguageModel.stop);
+            for (int b = 0; b < maxOrder - 1; b++) previousWords[b] = NGramLanguageModel.start;
+
+            for (String word : stoppedSentence) {
+                counts.unigrams.incrementCount(word, 1.0);
+                counts.tokens++;
+                for (int order = 2; order <= maxOrder; order++)
+                    counts.byOrder[order].incrementCount(
+                            NGramLanguageModel.context(previousWords, maxOrder - order), word, 1.0);
+
+                if (maxOrder > 1) {
+                    System.arraycopy(previousWords, 1, previousWords, 0, previousWords.length - 1);
+                    previousWords[previousWords.length - 1] = word;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Adds another set of counts, of the same maximum order, to these
+     */
+    void add(NGramCounts other) {
+        unigrams.incrementAll(other.unigrams);
+        tokens += other.tokens;
+        for (int order = 2; order <= maxOrder; order++) {
+            for (String context : other.byOrder[order].keySet())
+                for (Map.Entry<String, Double> entry : other.byOrder[order].getCounter(context).getEntrySet())
+                    byOrder[order].incrementCount(context, entry.getKey(), entry.getValue());
+        }
+    }
+}
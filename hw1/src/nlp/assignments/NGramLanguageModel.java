@@ -3,28 +3,112 @@ package nlp.assignments;
 import nlp.langmodel.LanguageModel;
 import nlp.util.Counter;
 import nlp.util.CounterMap;
+import nlp.util.MetricsRegistry;
 
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Created by samuelsmith on 11/9/2016.
  *
  * A language model that predicts the next word based on the previous n-1 words.
+ *
+ * Once trained, the n-gram tables can be moved off the Java heap with moveOffHeap(), after which the model should be
+ * closed when no longer needed, or merged into a single trie over every order with compactToTrie().
  */
-public class NGramLanguageModel implements LanguageModel {
+public class NGramLanguageModel implements LanguageModel, Closeable {
+
+    static final String start = "<S>", stop = "</S>", unknown = "*UNKNOWN*";
 
-    private static final String start = "<S>", stop = "</S>", unknown = "*UNKNOWN*";
+    //the key under which a smoother that reservesUnseenMass() holds back each history's mass for unseen words, which
+    //normalize() turns into the history's backoff weight
+    static final String unseen = "*UNSEEN*";
 
     private final ISmoother smoother;
+    private final boolean unseenMass;
+    private final NGramPruner pruner;
+    private NGramPruner.Report pruningReport;
 
     private final Counter<String> counter;
     private final LinkedHashMap<CounterMap<String, String>, Double> counterMaps;
 
-    public NGramLanguageModel(int n, Collection<List<String>> trainingSentences, ISmoother smoother, double[] lambdas) {
+    //the interpolation weights, highest order first and the unigram's last, kept in step with counterMaps' lambdas
+    private double[] weights = {1.0};
+
+    //if not null, words outside it are counted and scored as the unknown word
+    private final Vocabulary closedVocabulary;
+
+    //which of how many shards this model holds the n-grams of, for a model partitioned by ShardedLanguageModel
+    private final int shard, shards;
+
+    private long trainingTokens;
+
+    //set by moveOffHeap() or compactToTrie(): word ids and unigram probabilities by id
+    private Vocabulary vocabulary;
+    private double[] unigramProbabilities;
+
+    //set by moveOffHeap(): the n-gram tables and history counts by order
+    private OffHeapNGramTable[] tables;
+    private int[] contextCounts;
+
+    //set by compactToTrie(): the n-gram tables of every order in one trie
+    private NGramTrie trie;
+
+    //each history's following words sorted by probability, for getMostLikelyNextWords, built as histories are asked
+    //about; keyed by history, with the unigram's under "" (no history key is empty)
+    private final Map<String, Candidates> candidates = new ConcurrentHashMap<>();
+
+    //per-order lookup/hit tallies, only allocated once instrumentation is enabled
+    private AtomicLongArray lookups, hits;
+
+    public NGramLanguageModel(int n, Collection<List<String>> trainingSentences, ISmoother smoother, double[] lambdas,
+                              NGramPruner pruner) {
+        this(n, trainingSentences, smoother, lambdas, pruner, null, 0, 1);
+    }
+
+    /**
+     * Builds a model over a closed vocabulary (see Vocabulary.build): words outside it are counted, and scored, as
+     * the unknown word. A null vocabulary leaves the model open, as the other constructors do.
+     */
+    public NGramLanguageModel(int n, Collection<List<String>> trainingSentences, ISmoother smoother, double[] lambdas,
+                              NGramPruner pruner, Vocabulary closedVocabulary) {
+        this(n, trainingSentences, smoother, lambdas, pruner, closedVocabulary, 0, 1);
+    }
+
+    /**
+     * Builds one shard of a model partitioned across several processes (see ShardedLanguageModel): all the unigrams,
+     * but only the n-grams whose history ShardedLanguageModel.shardOf assigns to this shard. The smoother only sees
+     * this shard's histories, so must be history-local (ISmoother.isHistoryLocal): Good-Turing, whose count-of-counts
+     * would be this shard's alone, is rejected when there is more than one shard.
+     */
+    public NGramLanguageModel(int n, Collection<List<String>> trainingSentences, ISmoother smoother, double[] lambdas,
+                              int shard, int shards) {
+        this(n, trainingSentences, checkShardable(smoother, shards), lambdas, null, null, shard, shards);
+    }
+
+    private static ISmoother checkShardable(ISmoother smoother, int shards) {
+        if (shards > 1 && smoother != null && !smoother.isHistoryLocal())
+            throw new IllegalArgumentException(smoother.getClass().getSimpleName()
+                    + " does not smooth history by history, so cannot be sharded");
+        return smoother;
+    }
+
+    private NGramLanguageModel(int n, Collection<List<String>> trainingSentences, ISmoother smoother, double[] lambdas,
+                               NGramPruner pruner, Vocabulary closedVocabulary, int shard, int shards) {
         this.smoother = smoother;
+        this.unseenMass = smoother != null && smoother.reservesUnseenMass();
+        this.pruner = pruner;
+        this.closedVocabulary = closedVocabulary;
+        this.shard = shard;
+        this.shards = shards;
 
         counter = new Counter<>();
         counterMaps = new LinkedHashMap<>();
@@ -33,6 +117,63 @@ public class NGramLanguageModel implements LanguageModel {
         train(n, trainingSentences);
     }
 
+    public NGramLanguageModel(int n, Collection<List<String>> trainingSentences, ISmoother smoother, double[] lambdas) {
+        this(n, trainingSentences, smoother, lambdas, null);
+    }
+
+    /**
+     * Builds the model from counts made on disk by an ExternalNGramCounter, rather than from the sentences
+     * themselves, so the corpus never has to be counted in the heap
+     */
+    public NGramLanguageModel(ExternalNGramCounter.Result counts, ISmoother smoother, double[] lambdas,
+                              NGramPruner pruner) {
+        this(counts, smoother, lambdas, pruner, null);
+    }
+
+    /**
+     * Builds the model from counts made on disk, over a closed vocabulary. The counts must have been made from
+     * sentences mapped through the same vocabulary (Vocabulary.map); scored sentences are mapped through it too.
+     */
+    public NGramLanguageModel(ExternalNGramCounter.Result counts, ISmoother smoother, double[] lambdas,
+                              NGramPruner pruner, Vocabulary closedVocabulary) {
+        this.smoother = smoother;
+        this.unseenMass = smoother != null && smoother.reservesUnseenMass();
+        this.pruner = pruner;
+        this.closedVocabulary = closedVocabulary;
+        this.shard = 0;
+        this.shards = 1;
+
+        counter = new Counter<>();
+        counterMaps = new LinkedHashMap<>();
+
+        int n = counts.getOrder();
+        if (n > 1) createCounterMaps(n, lambdas);
+        load(counts);
+    }
+
+    /**
+     * Builds the model from counts already made in memory, less any held back: every order up to n of the total
+     * counts, minus the held-out counts (if not null) of the same n-grams. This is how CrossValidator derives each
+     * fold's model from the counts of every fold without recounting the others. The counts must have been made
+     * through the same closed vocabulary, if any.
+     */
+    NGramLanguageModel(int n, NGramCounts total, NGramCounts heldOut, ISmoother smoother, double[] lambdas,
+                       Vocabulary closedVocabulary) {
+        if (n > total.maxOrder) throw new IllegalArgumentException("Counts only go up to order " + total.maxOrder);
+        this.smoother = smoother;
+        this.unseenMass = smoother != null && smoother.reservesUnseenMass();
+        this.pruner = null;
+        this.closedVocabulary = closedVocabulary;
+        this.shard = 0;
+        this.shards = 1;
+
+        counter = new Counter<>();
+        counterMaps = new LinkedHashMap<>();
+
+        if (n > 1) createCounterMaps(n, lambdas);
+        load(n, total, heldOut);
+    }
+
     public NGramLanguageModel(int n, Collection<List<String>> trainingSentences, double[] lambdas) {
         this(n, trainingSentences, null, lambdas);
     }
@@ -44,13 +185,50 @@ public class NGramLanguageModel implements LanguageModel {
      */
     private void createCounterMaps(int n, double[] lambdas) {
         for (int i = 0; i < n - 1; i++) counterMaps.put(new CounterMap<>(), lambdas[i]);
+        weights = LambdaOptimizer.toWeights(Arrays.copyOf(lambdas, n - 1));
     }
 
-    private void train(int n, Collection<List<String>> trainingSentences) {
+    /**
+     * The words with those outside the closed vocabulary replaced by the unknown word, or the words themselves if the
+     * model is open
+     */
+    private List<String> mapWords(List<String> words) {
+        return closedVocabulary == null ? words : closedVocabulary.map(words);
+    }
 
+    private String mapWord(String word) {
+        return closedVocabulary == null ? word : closedVocabulary.map(word);
+    }
+
+    /**
+     * Drops the earliest word of a history key, giving the history of the order below
+     */
+    static String lowerContext(String context) {
+        return context.substring(context.indexOf(' ') + 1);
+    }
+
+    /**
+     * Builds the history key for words[from..to), space separated. Tokens are split on whitespace so can never
+     * contain a space, which keeps keys unambiguous ("a bc" vs "ab c") and lets the words be recovered with split.
+     */
+    static String context(String[] words, int from, int to) {
+        if (to - from == 1) return words[from];
+        StringBuilder sb = new StringBuilder();
+        for (int b = from; b < to; b++) {
+            if (b > from) sb.append(' ');
+            sb.append(words[b]);
+        }
+        return sb.toString();
+    }
+
+    static String context(String[] words, int from) {
+        return context(words, from, words.length);
+    }
+
+    private void train(int n, Collection<List<String>> trainingSentences) {
         for (List<String> sentence : trainingSentences) {
 
-            List<String> stoppedSentence = new ArrayList<>(sentence);
+            List<String> stoppedSentence = new ArrayList<>(mapWords(sentence));
             String[] previousWordBuffer = new String[n - 1];
 
             for (int i = 0; i < n - 1; i++) {
@@ -62,12 +240,13 @@ public class NGramLanguageModel implements LanguageModel {
             for (int i = n - 1; i < stoppedSentence.size(); i++) {
                 String word = stoppedSentence.get(i);
                 counter.incrementCount(word, 1.0);
+                trainingTokens++;
 
                 int a = 0;
                 for (CounterMap<String, String> counterMap : counterMaps.keySet()) {
-                    StringBuilder sb = new StringBuilder();
-                    for (int b = a; b < previousWordBuffer.length; b++) sb.append(previousWordBuffer[b]);
-                    counterMap.incrementCount(sb.toString(), word, 1.0);
+                    String context = context(previousWordBuffer, a);
+                    if (shards == 1 || ShardedLanguageModel.shardOf(context, shards) == shard)
+                        counterMap.incrementCount(context, word, 1.0);
                     a += 1;
                 }
 
@@ -78,8 +257,61 @@ public class NGramLanguageModel implements LanguageModel {
             }
         }
 
+        finishTraining();
+    }
+
+    private void load(ExternalNGramCounter.Result counts) {
+        Vocabulary vocabulary = counts.getVocabulary();
+        int n = counts.getOrder();
+
+        counts.read(1, (ids, count) -> {
+            counter.setCount(vocabulary.word(ids[0]), count);
+            trainingTokens += count;
+        });
+
+        for (int order = 2; order <= n; order++) {
+            CounterMap<String, String> counterMap = getCounterMap(order);
+
+            counts.read(order, (ids, count) -> {
+                String[] words = new String[ids.length];
+                for (int b = 0; b < ids.length; b++) words[b] = vocabulary.word(ids[b]);
+                counterMap.setCount(context(words, 0, ids.length - 1), words[ids.length - 1], count);
+            });
+        }
+
+        finishTraining();
+    }
+
+    private void load(int n, NGramCounts total, NGramCounts heldOut) {
+        for (Map.Entry<String, Double> entry : total.unigrams.getEntrySet()) {
+            double count = entry.getValue() - (heldOut == null ? 0 : heldOut.unigrams.getCount(entry.getKey()));
+            if (count > 0) counter.setCount(entry.getKey(), count);
+        }
+        trainingTokens = total.tokens - (heldOut == null ? 0 : heldOut.tokens);
+
+        for (int order = 2; order <= n; order++) {
+            CounterMap<String, String> counterMap = getCounterMap(order), all = total.byOrder[order];
+            CounterMap<String, String> held = heldOut == null ? null : heldOut.byOrder[order];
+            for (String context : all.keySet()) {
+                //getCounter would add the history to the held-out counts, which other threads may be reading
+                Counter<String> heldFollowing = held != null && held.containsKey(context)
+                        ? held.getCounter(context) : null;
+                for (Map.Entry<String, Double> entry : all.getCounter(context).getEntrySet()) {
+                    double count = entry.getValue()
+                            - (heldFollowing == null ? 0 : heldFollowing.getCount(entry.getKey()));
+                    if (count > 0) counterMap.setCount(context, entry.getKey(), count);
+                }
+            }
+        }
+
+        finishTraining();
+    }
+
+    private void finishTraining() {
         counter.incrementCount(unknown, 1.0);
 
+        if (pruner != null) pruningReport = pruner.prune(this);
+
         if (smoother != null) {
             smoother.smoothCounter(counter);
             counterMaps.keySet().forEach(smoother::smoothCounterMap);
@@ -90,55 +322,654 @@ public class NGramLanguageModel implements LanguageModel {
 
     private void normalize() {
         counter.normalize();
-        for (CounterMap<String, String> counterMap : counterMaps.keySet())
-            for (String previous : counterMap.keySet()) counterMap.getCounter(previous).normalize();
+        for (CounterMap<String, String> counterMap : counterMaps.keySet()) {
+            for (String previous : counterMap.keySet()) {
+                Counter<String> following = counterMap.getCounter(previous);
+                following.normalize();
+                if (unseenMass) toBackOffWeight(following);
+            }
+        }
+    }
+
+    /**
+     * Replaces a history's held-back mass under the unseen key by its backoff weight: the held-back mass over the
+     * unigram mass of the words never seen after the history, so that a word's backoff weight times its unigram
+     * probability, added up over those words, gives back the held-back mass and the history's probabilities sum to
+     * one. If every word was seen after the history there is nobody to give the mass to, so the seen words share it.
+     */
+    private void toBackOffWeight(Counter<String> following) {
+        double heldBack = following.getCount(unseen);
+        if (heldBack == 0) return;
+        double seenUnigrams = 0.0;
+        for (String word : following.keySet())
+            if (!word.equals(unseen)) seenUnigrams += counter.getCount(word);
+        double unseenUnigrams = 1.0 - seenUnigrams;
+        if (unseenUnigrams > 1e-12) {
+            following.setCount(unseen, heldBack / unseenUnigrams);
+        } else {
+            following.removeKey(unseen);
+            following.normalize();
+        }
     }
 
     @Override
     public double getSentenceProbability(List<String> sentence) {
-        double result = 1.0;
+        sentence = mapWords(sentence);
+        if (vocabulary != null) return getEncodedSentenceProbability(sentence);
+
         int n = counterMaps.size();
         List<String> stoppedSentence = new ArrayList<>(sentence);
+        stoppedSentence.add(stop);
         String[] previousWordBuffer = new String[n];
+        for (int i = 0; i < n; i++) previousWordBuffer[i] = start;
+        int tokens = stoppedSentence.size();
 
-        for (int i = 0; i < n; i++) {
-            stoppedSentence.add(0, start);
-            previousWordBuffer[i] = start;
+        //gather every token's probability under each order first, so they can be interpolated as a batch
+        double[][] columns = new double[n + 1][tokens];
+        double[] row = new double[n + 1];
+        for (int t = 0; t < tokens; t++) {
+            String word = stoppedSentence.get(t);
+            getOrderProbabilities(previousWordBuffer, word, row, true);
+            for (int j = 0; j <= n; j++) columns[j][t] = row[j];
+
+            if (n >= 1) {
+                System.arraycopy(previousWordBuffer, 1, previousWordBuffer, 0, previousWordBuffer.length - 1);
+                previousWordBuffer[previousWordBuffer.length - 1] = word;
+            }
         }
+
+        double result = 1.0;
+        for (double probability : interpolate(weights, columns, tokens)) result *= probability;
+        return result;
+    }
+
+    private double getNGramProbability(String[] previousWords, String word) {
+        double[] row = new double[counterMaps.size() + 1];
+        getOrderProbabilities(previousWords, word, row, true);
+        return interpolate(weights, row);
+    }
+
+    /**
+     * Fills row with every order's own probability of the word following previousWords in the heap tables, highest
+     * order first and the unigram's last, counting each order's lookups and hits if instrumented is set and
+     * instrumentation is enabled
+     */
+    private void getOrderProbabilities(String[] previousWords, String word, double[] row, boolean instrumented) {
+        double unigramCount = counter.getCount(word);
+        if (unigramCount == 0) unigramCount = counter.getCount(unknown); //unknown word
+
+        int a = 0;
+        for (CounterMap<String, String> counterMap : counterMaps.keySet()) {
+            String context = context(previousWords, a);
+            double count = counterMap.getCount(context, word);
+
+            if (instrumented && hits != null) {
+                lookups.incrementAndGet(a);
+                if (count > 0) hits.incrementAndGet(a);
+            }
+
+            if (count == 0 && unseenMass) count = counterMap.getCount(context, unseen) * unigramCount;
+            row[a] = count;
+            a += 1;
+        }
+        row[a] = unigramCount;
+    }
+
+    /**
+     * Gets every order's own (un-interpolated) probability for each token of a sentence, including the stop symbol:
+     * result[token][0] is the highest order's, result[token][n - 1] the unigram's (with unknown words given the
+     * unknown word's probability). Interpolating a row with the model's lambdas gives getNGramProbability.
+     */
+    double[][] getOrderProbabilities(List<String> sentence) {
+        sentence = mapWords(sentence);
+        if (vocabulary != null) {
+            int[] ids = encode(sentence), scratch = new int[getOrder()];
+            double[][] probabilities = new double[ids.length - getOrder() + 1][];
+            for (int i = getOrder() - 1; i < ids.length; i++) {
+                double[] row = new double[getOrder()];
+                getOrderProbabilities(ids, i, scratch, row);
+                probabilities[i - getOrder() + 1] = row;
+            }
+            return probabilities;
+        }
+
+        int n = counterMaps.size();
+        List<String> stoppedSentence = new ArrayList<>(sentence);
         stoppedSentence.add(stop);
+        String[] previousWordBuffer = new String[n];
+        for (int i = 0; i < n; i++) previousWordBuffer[i] = start;
 
-        for (int i = n; i < stoppedSentence.size(); i++) {
+        double[][] probabilities = new double[stoppedSentence.size()][n + 1];
+        for (int i = 0; i < stoppedSentence.size(); i++) {
             String word = stoppedSentence.get(i);
-            result *= getNGramProbability(previousWordBuffer, word);
+            getOrderProbabilities(previousWordBuffer, word, probabilities[i], false);
 
             if (n >= 1) {
                 System.arraycopy(previousWordBuffer, 1, previousWordBuffer, 0, previousWordBuffer.length - 1);
                 previousWordBuffer[previousWordBuffer.length - 1] = word;
             }
         }
+        return probabilities;
+    }
+
+    /**
+     * Moves the n-gram tables of every order above unigram into OffHeapNGramTables and drops the heap copies, so the
+     * bulk of a large model is no longer traced or copied by the garbage collector. Scoring then encodes each
+     * sentence to word ids once and probes the tables; the results are the same as before the move. Does nothing if
+     * the tables are already off heap or in a trie.
+     *
+     * The model can no longer be pruned or smoothed afterwards, and must be closed to release the tables.
+     */
+    public void moveOffHeap() {
+        if (vocabulary != null) return;
+        int n = getOrder();
+        indexVocabulary();
+
+        tables = new OffHeapNGramTable[n + 1];
+        contextCounts = new int[n + 1];
+        for (int order = 2; order <= n; order++) {
+            CounterMap<String, String> counterMap = getCounterMap(order);
+            OffHeapNGramTable table = new OffHeapNGramTable(order, counterMap.totalSize());
+            int[] ids = new int[order];
+            for (String context : counterMap.keySet()) {
+                String[] words = context.split(" ");
+                for (int b = 0; b < words.length; b++) ids[b] = vocabulary.index(words[b]);
+                Counter<String> following = counterMap.getCounter(context);
+                for (String word : following.keySet()) {
+                    ids[order - 1] = vocabulary.index(word);
+                    table.put(ids, 0, following.getCount(word));
+                }
+            }
+            tables[order] = table;
+            contextCounts[order] = counterMap.size();
+        }
+
+        indexUnigrams();
+        dropCounterMaps();
+    }
+
+    /**
+     * Merges the n-gram tables of every order above unigram into one ContextTrie over word ids and drops the
+     * CounterMaps, so each history is stored once however many longer histories extend it, and scoring a token takes
+     * one walk down the trie rather than a hash lookup per order. The results are the same as before. Does nothing if
+     * the tables are already in a trie or off heap.
+     *
+     * The model can no longer be pruned or smoothed afterwards.
+     */
+    public void compactToTrie() {
+        compactToTrie(false);
+    }
+
+    /**
+     * As compactToTrie(), optionally then compressing the trie into a SuccinctContextTrie: Elias-Fano coded word
+     * lists and offsets, implied child pointers, and probabilities as packed indices into a table of distinct values.
+     * Lookups are slower than in the plain trie, but the results are still the same.
+     */
+    public void compactToTrie(boolean succinct) {
+        if (vocabulary != null) return;
+        int n = getOrder();
+        indexVocabulary();
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CounterMap<String, String>[] byOrder = new CounterMap[n + 1];
+        for (int order = 2; order <= n; order++) byOrder[order] = getCounterMap(order);
+        ContextTrie contextTrie = new ContextTrie(byOrder, vocabulary);
+        trie = succinct ? new SuccinctContextTrie(contextTrie) : contextTrie;
+
+        indexUnigrams();
+        dropCounterMaps();
+    }
+
+    /**
+     * The bytes taken by the trie made by compactToTrie(), or 0 if the tables are not in one
+     */
+    public long getTrieBytes() {
+        return trie == null ? 0 : trie.bytes();
+    }
+
+    private void indexVocabulary() {
+        vocabulary = new Vocabulary();
+        vocabulary.index(unknown);
+        vocabulary.index(unseen);
+        vocabulary.index(start);
+        vocabulary.index(stop);
+        for (String word : counter.keySet()) vocabulary.index(word);
+    }
+
+    private void indexUnigrams() {
+        unigramProbabilities = new double[vocabulary.size()];
+        for (int id = 0; id < vocabulary.size(); id++) unigramProbabilities[id] = counter.getCount(vocabulary.word(id));
+    }
+
+    /**
+     * Keeps the lambdas, in order, against empty countermaps
+     */
+    private void dropCounterMaps() {
+        candidates.clear();
+        List<Double> lambdas = new ArrayList<>(counterMaps.values());
+        counterMaps.clear();
+        for (double lambda : lambdas) counterMaps.put(new CounterMap<>(), lambda);
+    }
+
+    /**
+     * The bytes an order's n-grams take now they are off heap or in a trie, where the trie's bytes are shared by every
+     * order and so split between them by their share of its n-grams. Only for models without their CounterMaps.
+     */
+    long getTableBytes(int order) {
+        if (tables != null) return tables[order].bytes();
+        if (trie == null) throw new IllegalStateException("The n-gram tables are still on the heap");
+        long ngrams = 0;
+        for (int o = 2; o <= getOrder(); o++) ngrams += trie.getNGramCount(o);
+        return ngrams == 0 ? 0 : Math.round((double) trie.bytes() * trie.getNGramCount(order) / ngrams);
+    }
+
+    /**
+     * The bytes held off heap by moveOffHeap(), or 0 if the tables are on the heap
+     */
+    public long getOffHeapBytes() {
+        long bytes = 0;
+        if (tables != null) for (OffHeapNGramTable table : tables) if (table != null) bytes += table.bytes();
+        return bytes;
+    }
+
+    /**
+     * Frees the off-heap tables, if any, at once. A model that was moved off heap cannot score anything once closed,
+     * and must not be scoring when it is closed.
+     */
+    @Override
+    public void close() {
+        if (tables != null) for (OffHeapNGramTable table : tables) if (table != null) table.close();
+    }
+
+    /**
+     * Gets the word ids of a sentence, preceded by n-1 start symbols and followed by the stop symbol. Words not in
+     * the vocabulary get -1.
+     */
+    private int[] encode(List<String> sentence) {
+        int n = getOrder();
+        int[] ids = new int[n + sentence.size()];
+        int startId = vocabulary.indexOf(start);
+        for (int i = 0; i < n - 1; i++) ids[i] = startId;
+        for (int i = 0; i < sentence.size(); i++) ids[n - 1 + i] = vocabulary.indexOf(sentence.get(i));
+        ids[ids.length - 1] = vocabulary.indexOf(stop);
+        return ids;
+    }
+
+    /**
+     * Fills row with every order's own probability of the word ids[i] given the ids before it, highest order first
+     * and the unigram's last, from the trie or the off-heap tables. Scratch must hold n ids.
+     */
+    private void getOrderProbabilities(int[] ids, int i, int[] scratch, double[] row) {
+        int n = getOrder(), unknownId = vocabulary.indexOf(unknown), unseenId = vocabulary.indexOf(unseen);
+
+        double unigram = ids[i] < 0 ? 0.0 : unigramProbabilities[ids[i]];
+        if (unigram == 0) unigram = unigramProbabilities[unknownId];
+        row[n - 1] = unigram;
+
+        if (trie != null) {
+            int seen = trie.getOrderProbabilities(ids, i, n, unigram, unseenMass, row);
+            if (hits != null) {
+                for (int order = n; order >= 2; order--) {
+                    lookups.incrementAndGet(n - order);
+                    if ((seen & 1 << (order - 2)) != 0) hits.incrementAndGet(n - order);
+                }
+            }
+            return;
+        }
+
+        for (int order = n; order >= 2; order--) {
+            int from = i - order + 1;
+            double probability = tables[order].get(ids, from);
+
+            if (hits != null) {
+                lookups.incrementAndGet(n - order);
+                if (probability > 0) hits.incrementAndGet(n - order);
+            }
+
+            if (probability == 0 && unseenMass) {
+                System.arraycopy(ids, from, scratch, 0, order - 1);
+                scratch[order - 1] = unseenId;
+                probability = tables[order].get(scratch, 0) * unigram;
+            }
+            row[n - order] = probability;
+        }
+    }
+
+    private static double interpolate(double[] weights, double[] row) {
+        double probability = 0.0;
+        for (int j = 0; j < row.length; j++) probability += weights[j] * row[j];
+        return probability;
+    }
+
+    /**
+     * Interpolates a batch of tokens at once from one column of probabilities per order (columns[j][t] is token t's
+     * probability under the order weights[j] is for), a column at a time. The inner loop is a plain multiply-add over
+     * arrays, which the JIT compiles to SIMD instructions, and the sums are made in the same order as interpolate, so
+     * the results are the same.
+     */
+    private static double[] interpolate(double[] weights, double[][] columns, int tokens) {
+        double[] probabilities = new double[tokens];
+        for (int j = 0; j < weights.length; j++) {
+            double weight = weights[j];
+            double[] column = columns[j];
+            for (int t = 0; t < tokens; t++) probabilities[t] += weight * column[t];
+        }
+        return probabilities;
+    }
+
+    private double getEncodedSentenceProbability(List<String> sentence) {
+        int n = getOrder();
+        int[] ids = encode(sentence), scratch = new int[n];
+        int tokens = ids.length - n + 1;
+
+        //gather every token's probability under each order first, so they can be interpolated as a batch
+        double[][] columns = new double[n][tokens];
+        double[] row = new double[n];
+        for (int t = 0; t < tokens; t++) {
+            getOrderProbabilities(ids, t + n - 1, scratch, row);
+            for (int j = 0; j < n; j++) columns[j][t] = row[j];
+        }
 
+        double result = 1.0;
+        for (double probability : interpolate(weights, columns, tokens)) result *= probability;
         return result;
     }
 
-    private double getNGramProbability(String[] previousWords, String word) {
-        double result = 0.0, lambdaRemainder = 1.0;
+    /**
+     * The interpolated probability of a word following the given history. Only the last n-1 words of the history
+     * are used, and a shorter history is padded with start symbols, as at the start of a sentence.
+     */
+    public double getWordProbability(List<String> history, String word) {
+        history = mapWords(history);
+        word = mapWord(word);
+        int n = getOrder();
+        String[] previousWords = new String[n - 1];
+        for (int b = 0; b < n - 1; b++) {
+            int h = history.size() - (n - 1) + b;
+            previousWords[b] = h < 0 ? start : history.get(h);
+        }
+        if (vocabulary == null) return getNGramProbability(previousWords, word);
+
+        int[] ids = new int[n];
+        for (int b = 0; b < n - 1; b++) ids[b] = vocabulary.indexOf(previousWords[b]);
+        ids[n - 1] = vocabulary.indexOf(word);
+        double[] row = new double[n];
+        getOrderProbabilities(ids, n - 1, new int[n], row);
+        return interpolate(weights, row);
+    }
+
+    /**
+     * getWordProbability added up over every word of the vocabulary (the unknown word standing for all the words
+     * outside it) after the given history: one, to rounding, for any history seen in training
+     */
+    public double getTotalProbability(List<String> history) {
+        double total = 0.0;
+        for (String word : counter.keySet()) total += getWordProbability(history, word);
+        return total;
+    }
 
+    /**
+     * The k words most likely to follow the given history, most likely first, ranked by getWordProbability (start,
+     * unknown and unseen symbols are never suggested). Only the last n-1 words of the history are used, as there.
+     *
+     * Rather than scoring the whole vocabulary, this reads down the following words of each order's history and the
+     * unigrams, each list sorted by its own order's probability, scoring every new word it meets in full, and stops
+     * once the k-th best score is at least the most any unread word could still get (the threshold algorithm). The
+     * sorted lists are cached per history, so repeated queries for a history only walk the first few entries. Needs
+     * the n-gram tables on the heap.
+     */
+    public List<String> getMostLikelyNextWords(List<String> history, int k) {
+        if (vocabulary != null) throw new IllegalStateException("Next-word predictions need the n-gram tables on the heap");
+        history = mapWords(history);
+        int n = getOrder();
+        String[] previousWords = new String[n - 1];
+        for (int b = 0; b < n - 1; b++) {
+            int h = history.size() - (n - 1) + b;
+            previousWords[b] = h < 0 ? start : history.get(h);
+        }
+
+        //each order's list, highest order first and the unigrams last, with its held-back mass
+        Candidates[] lists = new Candidates[n];
+        double[] heldBack = new double[n];
         int a = 0;
         for (CounterMap<String, String> counterMap : counterMaps.keySet()) {
-            StringBuilder sb = new StringBuilder();
+            String context = context(previousWords, a);
+            lists[a] = candidates(counterMap, context);
+            heldBack[a] = unseenMass ? counterMap.getCount(context, unseen) : 0.0;
+            a++;
+        }
+        lists[n - 1] = candidates.computeIfAbsent("", c -> new Candidates(counter));
+
+        Counter<String> scores = new Counter<>();
+        PriorityQueue<Double> best = new PriorityQueue<>();
+        for (int depth = 0; k > 0; depth++) {
+            boolean more = false;
+            for (Candidates list : lists) {
+                if (depth >= list.words.length) continue;
+                more = true;
+                String word = list.words[depth];
+                if (scores.containsKey(word)) continue;
+                double score = getNGramProbability(previousWords, word);
+                scores.setCount(word, score);
+                if (best.size() < k) best.add(score);
+                else if (score > best.peek()) {
+                    best.poll();
+                    best.add(score);
+                }
+            }
+            if (!more) break;
 
-            for (int b = a; b < previousWords.length; b++) sb.append(previousWords[b]);
-            a += 1;
+            //the most an unread word can get: each order's next value, or its held-back share of the next unigram's
+            double unigram = lists[n - 1].probability(depth + 1), bound = weights[n - 1] * unigram;
+            for (int o = 0; o < n - 1; o++)
+                bound += weights[o] * Math.max(lists[o].probability(depth + 1), heldBack[o] * unigram);
+            if (best.size() == k && best.peek() >= bound) break;
+        }
+        return scores.topK(k);
+    }
+
+    private Candidates candidates(CounterMap<String, String> counterMap, String context) {
+        //not cached when missing, so unseen histories asked about do not pile up
+        if (!counterMap.containsKey(context)) return Candidates.none;
+        return candidates.computeIfAbsent(context, c -> new Candidates(counterMap.getCounter(c)));
+    }
+
+    /**
+     * The words of a distribution that can be suggested, in order of decreasing probability
+     */
+    private static class Candidates {
+        static final Candidates none = new Candidates(new Counter<>());
+
+        final String[] words;
+        final double[] probabilities;
+
+        Candidates(Counter<String> distribution) {
+            List<String> sorted = distribution.getSortedKeys();
+            sorted.removeIf(word -> word.equals(start) || word.equals(unknown) || word.equals(unseen));
+            words = sorted.toArray(new String[0]);
+            probabilities = new double[words.length];
+            for (int j = 0; j < words.length; j++) probabilities[j] = distribution.getCount(words[j]);
+        }
 
-            double lambda = counterMaps.get(counterMap);
-            result += lambda * counterMap.getCount(sb.toString(), word);
-            lambdaRemainder -= lambda;
+        double probability(int j) {
+            return j < words.length ? probabilities[j] : 0.0;
         }
+    }
 
-        double unigramCount = counter.getCount(word);
-        if (unigramCount == 0) unigramCount = counter.getCount(unknown); //unknown word
+    /**
+     * A single order's own (un-interpolated) probability of a word following the given history, where the order is
+     * one more than the history's length: the value getOrderProbabilities gives that order. A shard answers for the
+     * histories assigned to it (and for every unigram).
+     */
+    public double getOrderProbability(List<String> history, String word) {
+        history = mapWords(history);
+        word = mapWord(word);
+        int order = history.size() + 1;
+        if (order > getOrder()) throw new IllegalArgumentException("History longer than " + (getOrder() - 1) + " words");
+
+        if (vocabulary != null) {
+            int[] ids = new int[order];
+            for (int b = 0; b < order - 1; b++) ids[b] = vocabulary.indexOf(history.get(b));
+            ids[order - 1] = vocabulary.indexOf(word);
+
+            double unigram = ids[order - 1] < 0 ? 0.0 : unigramProbabilities[ids[order - 1]];
+            if (unigram == 0) unigram = unigramProbabilities[vocabulary.indexOf(unknown)];
+            if (order == 1) return unigram;
+            if (trie != null) return trie.getProbability(ids, 0, order, unigram, unseenMass);
+
+            double probability = tables[order].get(ids, 0);
+            if (probability == 0 && unseenMass) {
+                ids[order - 1] = vocabulary.indexOf(unseen);
+                probability = tables[order].get(ids, 0) * unigram;
+            }
+            return probability;
+        }
+
+        double unigram = counter.getCount(word);
+        if (unigram == 0) unigram = counter.getCount(unknown);
+        if (order == 1) return unigram;
+
+        CounterMap<String, String> counterMap = getCounterMap(order);
+        String context = String.join(" ", history);
+        double count = counterMap.getCount(context, word);
+        if (count == 0 && unseenMass) count = counterMap.getCount(context, unseen) * unigram;
+        return count;
+    }
+
+    /**
+     * The interpolation weights of the orders above unigram, highest order first (as given to the constructor)
+     */
+    public double[] getLambdas() {
+        double[] lambdas = new double[counterMaps.size()];
+        int i = 0;
+        for (double lambda : counterMaps.values()) lambdas[i++] = lambda;
+        return lambdas;
+    }
+
+    /**
+     * Replaces the interpolation weights, highest order first; the unigram gets whatever is left over. The counts are
+     * untouched, so this is cheap.
+     */
+    public void setLambdas(double[] lambdas) {
+        if (lambdas.length != counterMaps.size())
+            throw new IllegalArgumentException("Expected " + counterMaps.size() + " lambdas, got " + lambdas.length);
+        int i = 0;
+        for (CounterMap<String, String> counterMap : counterMaps.keySet()) counterMaps.put(counterMap, lambdas[i++]);
+        weights = LambdaOptimizer.toWeights(lambdas);
+    }
+
+    /**
+     * The n of this model, eg 3 for a trigram model
+     */
+    public int getOrder() {
+        return counterMaps.size() + 1;
+    }
+
+    /**
+     * The number of tokens (including stop symbols) seen during training
+     */
+    public long getTrainingTokens() {
+        return trainingTokens;
+    }
+
+    /**
+     * Whether the n-gram tables are still the countermaps they were trained into, rather than off heap or in a trie
+     */
+    boolean hasCounterMaps() {
+        return vocabulary == null;
+    }
 
-        return result + lambdaRemainder * unigramCount;
+    boolean hasClosedVocabulary() {
+        return closedVocabulary != null;
+    }
+
+    boolean reservesUnseenMass() {
+        return unseenMass;
+    }
+
+    Counter<String> getUnigramCounter() {
+        return counter;
+    }
+
+    /**
+     * Gets the countermap holding the n-grams of the given order (2 for bigrams, etc.)
+     * Index 0 of counterMaps holds the longest histories, so holds the highest order.
+     */
+    CounterMap<String, String> getCounterMap(int order) {
+        if (order < 2 || order > getOrder()) throw new IllegalArgumentException("No countermap of order " + order);
+        int index = getOrder() - order;
+        for (CounterMap<String, String> counterMap : counterMaps.keySet()) if (index-- == 0) return counterMap;
+        throw new IllegalStateException();
+    }
+
+    /**
+     * The interpolation weight of the given order; the unigram weight is whatever the higher orders leave over
+     */
+    double getLambda(int order) {
+        if (order > 1) return counterMaps.get(getCounterMap(order));
+        double remainder = 1.0;
+        for (double lambda : counterMaps.values()) remainder -= lambda;
+        return remainder;
+    }
+
+    /**
+     * What the pruner removed during training, or null if the model was built without one
+     */
+    public NGramPruner.Report getPruningReport() {
+        return pruningReport;
+    }
+
+    /**
+     * The number of distinct n-grams of the given order (1 for unigrams, etc.)
+     */
+    public int getNGramCount(int order) {
+        if (order > 1 && trie != null) return trie.getNGramCount(order);
+        if (order > 1 && tables != null) return (int) tables[order].size();
+        return order == 1 ? counter.size() : getCounterMap(order).totalSize();
+    }
+
+    /**
+     * The number of distinct histories of the given order (a single empty history for unigrams)
+     */
+    public int getContextCount(int order) {
+        if (order > 1 && trie != null) return trie.getContextCount(order);
+        if (order > 1 && tables != null) return contextCounts[order];
+        return order == 1 ? 1 : getCounterMap(order).size();
+    }
+
+    /**
+     * Starts tallying, per order, how often a scored n-gram was seen in training. Off by default as it costs
+     * two atomic increments per order per token.
+     */
+    public void enableInstrumentation() {
+        if (hits == null) {
+            lookups = new AtomicLongArray(counterMaps.size());
+            hits = new AtomicLongArray(counterMaps.size());
+        }
+    }
+
+    /**
+     * Publishes n-gram and history counts per order, the training token count, and (if instrumentation is
+     * enabled) the per-order n-gram hit rates to the given registry, labelled with the given model name.
+     */
+    public void reportMetrics(MetricsRegistry metrics, String modelName) {
+        metrics.setGauge("lm_training_tokens", trainingTokens, "model", modelName);
+        if (tables != null) metrics.setGauge("lm_offheap_bytes", getOffHeapBytes(), "model", modelName);
+        if (trie != null) metrics.setGauge("lm_trie_bytes", getTrieBytes(), "model", modelName);
+        for (int order = 1; order <= getOrder(); order++) {
+            String o = Integer.toString(order);
+            metrics.setGauge("lm_ngrams", getNGramCount(order), "model", modelName, "order", o);
+            metrics.setGauge("lm_contexts", getContextCount(order), "model", modelName, "order", o);
+        }
+
+        if (hits == null) return;
+        for (int i = 0; i < counterMaps.size(); i++) {
+            long lookupCount = lookups.get(i);
+            String o = Integer.toString(getOrder() - i);
+            metrics.setGauge("lm_ngram_lookups", lookupCount, "model", modelName, "order", o);
+            metrics.setGauge("lm_ngram_hit_rate", lookupCount == 0 ? 0.0 : (double) hits.get(i) / lookupCount,
+                    "model", modelName, "order", o);
+        }
     }
 
     @Override
@@ -0,0 +1,199 @@
+package nlp.assignments;
+
+import nlp.util.Counter;
+import nlp.util.CounterMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Removes rarely useful n-grams from an NGramLanguageModel while it is still holding raw counts, ie after counting
+ * and before smoothing and normalization. Unigrams are never pruned.
+ *
+ * Two criteria can be combined. A count cutoff drops every n-gram of an order seen fewer than that order's minimum
+ * count. Relative-entropy pruning (Stolcke, 1998) then drops every remaining n-gram whose removal would raise the
+ * model's per-word entropy by less than a threshold. Like Stolcke, each n-gram is judged against the model as it
+ * stands after the cutoffs, independently of the other removals, and only the distribution of its own order (with
+ * the lower orders it is interpolated with) is considered.
+ */
+public class NGramPruner {
+
+    /**
+     * What a pruning pass removed, per order (index 0 = unigrams, always zero).
+     */
+    public static class Report {
+        public final long[] before, removedByCount, removedByEntropy;
+        public double relativeEntropy;
+
+        Report(int n) {
+            before = new long[n];
+            removedByCount = new long[n];
+            removedByEntropy = new long[n];
+        }
+
+        public long getRemoved() {
+            long removed = 0;
+            for (int i = 0; i < before.length; i++) removed += removedByCount[i] + removedByEntropy[i];
+            return removed;
+        }
+
+        /**
+         * Stolcke's estimate of pruned perplexity / unpruned perplexity: exp of the summed relative entropies. Only
+         * covers the entropy-pruned n-grams; cutoff removals are not scored.
+         */
+        public double getPredictedPerplexityRatio() {
+            return Math.exp(relativeEntropy);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 1; i < before.length; i++) {
+                sb.append(String.format("--------ORDER %d: %,12d n-grams, %,12d below count cutoff, %,12d below entropy threshold%n",
+                        i + 1, before[i], removedByCount[i], removedByEntropy[i]));
+            }
+            sb.append(String.format("--------PREDICTED PERPLEXITY CHANGE FROM ENTROPY PRUNING: x%.4f%n",
+                    getPredictedPerplexityRatio()));
+            return sb.toString();
+        }
+    }
+
+    private final double[] minCounts;
+    private final double threshold;
+
+    /**
+     * @param minCounts minimum counts to keep an n-gram, starting at bigrams (minCounts[0] for bigrams, [1] for
+     *                  trigrams, etc). Orders past the end of the array are not cutoff-pruned; null disables cutoffs.
+     * @param threshold relative-entropy threshold (in nats); 0 disables entropy pruning. Stolcke used values
+     *                  around 1e-8 to 1e-6.
+     */
+    public NGramPruner(double[] minCounts, double threshold) {
+        this.minCounts = minCounts == null ? new double[0] : minCounts.clone();
+        this.threshold = threshold;
+    }
+
+    public static NGramPruner countCutoffs(double... minCounts) {
+        return new NGramPruner(minCounts, 0.0);
+    }
+
+    public static NGramPruner relativeEntropy(double threshold) {
+        return new NGramPruner(null, threshold);
+    }
+
+    Report prune(NGramLanguageModel model) {
+        int n = model.getOrder();
+        Report report = new Report(n);
+
+        for (int order = 2; order <= n; order++) {
+            CounterMap<String, String> counterMap = model.getCounterMap(order);
+            report.before[order - 1] = counterMap.totalSize();
+            if (order - 2 < minCounts.length) report.removedByCount[order - 1] = cutoff(counterMap, minCounts[order - 2]);
+        }
+
+        if (threshold <= 0) return report;
+
+        //score every surviving n-gram before removing any of them
+        List<List<String[]>> toRemove = new ArrayList<>();
+        for (int order = 2; order <= n; order++) {
+            List<String[]> removals = new ArrayList<>();
+            report.relativeEntropy += score(model, order, removals);
+            toRemove.add(removals);
+        }
+
+        for (int order = 2; order <= n; order++) {
+            CounterMap<String, String> counterMap = model.getCounterMap(order);
+            for (String[] ngram : toRemove.get(order - 2)) counterMap.removeCount(ngram[0], ngram[1]);
+            report.removedByEntropy[order - 1] = toRemove.get(order - 2).size();
+        }
+
+        return report;
+    }
+
+    private static long cutoff(CounterMap<String, String> counterMap, double minCount) {
+        List<String[]> removals = new ArrayList<>();
+        for (String context : counterMap.keySet()) {
+            Counter<String> counter = counterMap.getCounter(context);
+            for (String word : counter.keySet()) if (counter.getCount(word) < minCount) removals.add(new String[]{context, word});
+        }
+        for (String[] ngram : removals) counterMap.removeCount(ngram[0], ngram[1]);
+        return removals.size();
+    }
+
+    /**
+     * Interpolated probability of word given a history at some order, from raw counts, using only that order and
+     * those below it.
+     */
+    private static double lowerProbability(NGramLanguageModel model, int order, String context, String word) {
+        double probability = 0.0;
+        for (int o = order; o >= 2; o--) {
+            CounterMap<String, String> counterMap = model.getCounterMap(o);
+            if (counterMap.containsKey(context)) {
+                Counter<String> counter = counterMap.getCounter(context);
+                probability += model.getLambda(o) * counter.getCount(word) / counter.totalCount();
+            }
+            if (o > 2) context = NGramLanguageModel.lowerContext(context);
+        }
+        Counter<String> unigrams = model.getUnigramCounter();
+        return probability + model.getLambda(1) * unigrams.getCount(word) / unigrams.totalCount();
+    }
+
+    /**
+     * Finds the n-grams of one order below the entropy threshold, adding them to removals, and returns their summed
+     * relative entropy.
+     *
+     * For a history h with total count C, removing w (count c) sets w's own-order estimate to zero and renormalizes
+     * the others to c_v / (C - c). Every v in h with the same count gives the same renormalization, so the sum over
+     * the context is computed once per distinct count rather than once per candidate.
+     */
+    private double score(NGramLanguageModel model, int order, List<String[]> removals) {
+        CounterMap<String, String> counterMap = model.getCounterMap(order);
+        double lambda = model.getLambda(order), totalCount = counterMap.totalCount(), relativeEntropy = 0.0;
+
+        for (String context : counterMap.keySet()) {
+            Counter<String> counter = counterMap.getCounter(context);
+            double contextCount = counter.totalCount(), contextProbability = contextCount / totalCount;
+            String lowerContext = order > 2 ? NGramLanguageModel.lowerContext(context) : null;
+
+            //current probability, and the part owed to lower orders, of each word seen after this history
+            Map<String, double[]> probabilities = new HashMap<>();
+            TreeSet<Double> distinctCounts = new TreeSet<>();
+            for (String word : counter.keySet()) {
+                double count = counter.getCount(word);
+                double lower = order > 2 ? lowerProbability(model, order - 1, lowerContext, word)
+                        : model.getLambda(1) * model.getUnigramCounter().getCount(word) / model.getUnigramCounter().totalCount();
+                probabilities.put(word, new double[]{count, lambda * count / contextCount + lower, lower});
+                distinctCounts.add(count);
+            }
+
+            //summed divergence of all words in the history when some word of the given count is removed
+            Map<Double, Double> divergenceByCount = new HashMap<>();
+            for (double removedCount : distinctCounts) {
+                double divergence = 0.0, remaining = contextCount - removedCount;
+                if (remaining > 0) {
+                    for (double[] p : probabilities.values()) {
+                        divergence += p[1] * Math.log(p[1] / (lambda * p[0] / remaining + p[2]));
+                    }
+                }
+                divergenceByCount.put(removedCount, divergence);
+            }
+
+            for (Map.Entry<String, double[]> entry : probabilities.entrySet()) {
+                double[] p = entry.getValue();
+                double remaining = contextCount - p[0];
+                double divergence = divergenceByCount.get(p[0]) + p[1] * Math.log(p[1] / p[2]);
+                if (remaining > 0) divergence -= p[1] * Math.log(p[1] / (lambda * p[0] / remaining + p[2]));
+                divergence *= contextProbability;
+
+                if (divergence < threshold) {
+                    removals.add(new String[]{context, entry.getKey()});
+                    relativeEntropy += divergence;
+                }
+            }
+        }
+
+        return relativeEntropy;
+    }
+}
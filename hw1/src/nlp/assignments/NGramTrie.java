@@ -0,0 +1,86 @@
+package nlp.assignments;
+
+/**
+ * A reversed-context trie over word ids holding the n-gram tables of every order above unigram: the root is the
+ * empty history, and the child of a node along word v is the node's history with v put in front. Each node has the
+ * probabilities of the words seen after its history and the history's backoff weight for unseen words.
+ *
+ * Subclasses decide how nodes are stored; scoring a word walks back through its history from the root, one order
+ * per step.
+ */
+abstract class NGramTrie {
+
+    //distinct n-grams and histories by order
+    final int[] ngramCounts, contextCounts;
+
+    NGramTrie(int[] ngramCounts, int[] contextCounts) {
+        this.ngramCounts = ngramCounts;
+        this.contextCounts = contextCounts;
+    }
+
+    /**
+     * The child of a node along a word id, or -1 if there is none
+     */
+    abstract int child(int node, int word);
+
+    /**
+     * The probability of a word id after a node's history, or 0 if it was not seen there
+     */
+    abstract double probability(int node, int word);
+
+    /**
+     * The backoff weight of a node's history: an unseen word's probability there is this times its unigram one
+     */
+    abstract double heldBack(int node);
+
+    /**
+     * The bytes taken by the trie's nodes
+     */
+    abstract long bytes();
+
+    /**
+     * Fills row[0 .. n - 1) with the own probability of each order from n down to 2 of the word ids[i] given the ids
+     * before it, in one walk back through its history. Where the word was not seen after a history and unseenMass is
+     * set, the history's held-back mass times the word's unigram probability is used instead. Returns a mask with bit
+     * (order - 2) set for each order whose n-gram was seen.
+     */
+    int getOrderProbabilities(int[] ids, int i, int n, double unigram, boolean unseenMass, double[] row) {
+        int seen = 0, node = 0;
+        for (int order = 2; order <= n; order++) {
+            int word = ids[i - order + 1];
+            node = node < 0 || word < 0 ? -1 : child(node, word);
+            if (node < 0) {
+                row[n - order] = 0.0;
+                continue;
+            }
+
+            double probability = ids[i] < 0 ? 0.0 : probability(node, ids[i]);
+            if (probability > 0) seen |= 1 << (order - 2);
+            else if (unseenMass) probability = heldBack(node) * unigram;
+            row[n - order] = probability;
+        }
+        return seen;
+    }
+
+    /**
+     * The own probability of one order of the word ids[from + order - 1] given the ids before it from ids[from], with
+     * the same fallback to held-back mass as getOrderProbabilities
+     */
+    double getProbability(int[] ids, int from, int order, double unigram, boolean unseenMass) {
+        int node = 0;
+        for (int b = from + order - 2; b >= from && node >= 0; b--) node = ids[b] < 0 ? -1 : child(node, ids[b]);
+        if (node < 0) return 0.0;
+
+        int word = ids[from + order - 1];
+        double probability = word < 0 ? 0.0 : probability(node, word);
+        return probability == 0 && unseenMass ? heldBack(node) * unigram : probability;
+    }
+
+    int getNGramCount(int order) {
+        return ngramCounts[order];
+    }
+
+    int getContextCount(int order) {
+        return contextCounts[order];
+    }
+}
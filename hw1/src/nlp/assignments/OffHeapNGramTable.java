@@ -0,0 +1,168 @@
+package nlp.assignments;
+
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.Consumer;
+
+/**
+ * A fixed-size open-addressing hash table from n-grams of one order (as word ids) to doubles, held in direct
+ * (off-heap) byte buffers so that the garbage collector never has to trace or copy its entries.
+ *
+ * Each slot holds the n-gram's ids, stored as id + 1 so that an all-zero slot is empty, followed by its value.
+ * Collisions are resolved by linear probing and the table is kept at most half full. Slots are spread over chunks
+ * of at most 1GB, as a single buffer is limited to 2GB.
+ *
+ * The table must be closed when no longer needed, which frees its native memory there and then; lookups on a closed
+ * table throw IllegalStateException.
+ */
+class OffHeapNGramTable implements Closeable {
+
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    //frees a direct buffer's native memory at once, through whichever cleaner the running JVM has
+    private static final Consumer<ByteBuffer> FREE = freer();
+
+    private final int order, slotBytes, chunkShift;
+    private final long capacity, chunkMask;
+    private ByteBuffer[] chunks;
+    private long size;
+
+    OffHeapNGramTable(int order, long expectedEntries) {
+        this.order = order;
+        slotBytes = 4 * order + 8;
+
+        long slots = 16;
+        while (slots < 2 * expectedEntries) slots *= 2;
+        capacity = slots;
+
+        int slotsPerChunk = Integer.highestOneBit(MAX_CHUNK_BYTES / slotBytes);
+        chunkShift = Integer.numberOfTrailingZeros(slotsPerChunk);
+        chunkMask = slotsPerChunk - 1;
+
+        int chunkCount = (int) ((capacity + slotsPerChunk - 1) / slotsPerChunk);
+        chunks = new ByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            long chunkSlots = Math.min(slotsPerChunk, capacity - (long) i * slotsPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect((int) (chunkSlots * slotBytes)).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private static long hash(int[] ids, int from, int order) {
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i = from; i < from + order; i++) {
+            h = (h ^ ids[i]) * 0xBF58476D1CE4E5B9L;
+            h ^= h >>> 31;
+        }
+        return h;
+    }
+
+    private ByteBuffer chunk(long slot) {
+        if (chunks == null) throw new IllegalStateException("Off-heap n-gram table has been closed");
+        return chunks[(int) (slot >>> chunkShift)];
+    }
+
+    private int offset(long slot) {
+        return (int) (slot & chunkMask) * slotBytes;
+    }
+
+    /**
+     * Finds the slot holding ids[from..from+order), or the empty slot where it would go
+     */
+    private long find(int[] ids, int from) {
+        long slot = hash(ids, from, order) & (capacity - 1);
+        while (true) {
+            ByteBuffer chunk = chunk(slot);
+            int offset = offset(slot);
+            int first = chunk.getInt(offset);
+            if (first == 0) return slot;
+            if (first == ids[from] + 1) {
+                int i = 1;
+                while (i < order && chunk.getInt(offset + 4 * i) == ids[from + i] + 1) i++;
+                if (i == order) return slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    void put(int[] ids, int from, double value) {
+        long slot = find(ids, from);
+        ByteBuffer chunk = chunk(slot);
+        int offset = offset(slot);
+        if (chunk.getInt(offset) == 0) {
+            if (++size > capacity / 2) throw new IllegalStateException("Off-heap n-gram table is full");
+            for (int i = 0; i < order; i++) chunk.putInt(offset + 4 * i, ids[from + i] + 1);
+        }
+        chunk.putDouble(offset + 4 * order, value);
+    }
+
+    /**
+     * Gets the value of ids[from..from+order), or zero if absent. Negative (unknown word) ids are never present.
+     */
+    double get(int[] ids, int from) {
+        for (int i = from; i < from + order; i++) if (ids[i] < 0) return 0.0;
+        long slot = find(ids, from);
+        ByteBuffer chunk = chunk(slot);
+        int offset = offset(slot);
+        return chunk.getInt(offset) == 0 ? 0.0 : chunk.getDouble(offset + 4 * order);
+    }
+
+    long size() {
+        return size;
+    }
+
+    long bytes() {
+        return capacity * slotBytes;
+    }
+
+    /**
+     * Frees the buffers' native memory now, rather than whenever the collector gets round to the buffer objects.
+     * Lookups afterwards fail fast with IllegalStateException, but one still running when the table is closed would
+     * read freed memory, so callers must stop scoring first. Closing again does nothing.
+     */
+    @Override
+    public void close() {
+        ByteBuffer[] closing = chunks;
+        chunks = null;
+        if (closing != null) for (ByteBuffer chunk : closing) FREE.accept(chunk);
+    }
+
+    /**
+     * Unsafe.invokeCleaner on Java 9 and later, the buffer's own Cleaner on Java 8, and if neither can be reached
+     * nothing, leaving the memory to the collector as before
+     */
+    private static Consumer<ByteBuffer> freer() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            //not Java 9 or later
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> invoke(clean, invoke(cleaner, buffer));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return buffer -> {
+            };
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package nlp.assignments;
+
+import nlp.langmodel.LanguageModel;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A language model scored by a LanguageModelServer, over one connection. Calls are synchronized, so threads sharing
+ * an instance take turns; give each thread its own instance for concurrency.
+ */
+public class RemoteLanguageModel implements LanguageModel, Closeable {
+
+    private static final int PIPELINE_DEPTH = 256;
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final Writer out;
+
+    public RemoteLanguageModel(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    private void write(String type, List<String> words, String word) throws IOException {
+        out.write(type);
+        out.write('\t');
+        out.write(String.join(" ", words));
+        if (word != null) {
+            out.write('\t');
+            out.write(word);
+        }
+        out.write('\n');
+    }
+
+    private double read() throws IOException {
+        String answer = in.readLine();
+        if (answer == null) throw new IOException("LM server closed the connection");
+        if (answer.startsWith("E\t")) throw new IllegalStateException("LM server: " + answer.substring(2));
+        return Double.parseDouble(answer);
+    }
+
+    @Override
+    public synchronized double getSentenceProbability(List<String> sentence) {
+        try {
+            write("S", sentence, null);
+            out.flush();
+            return read();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Sends requests of one type pipelined: up to PIPELINE_DEPTH are written before their answers are read, so the
+     * server can batch them. (Bounding the depth keeps both sides' socket buffers from filling up at once.)
+     * @param targets the word of each W or P request, or null for S requests
+     */
+    private double[] pipeline(String type, Collection<List<String>> words, List<String> targets) throws IOException {
+        double[] answers = new double[words.size()];
+        int written = 0, answered = 0;
+        for (List<String> request : words) {
+            write(type, request, targets == null ? null : targets.get(written));
+            if (++written - answered == PIPELINE_DEPTH) {
+                out.flush();
+                while (answered < written) answers[answered++] = read();
+            }
+        }
+        out.flush();
+        while (answered < written) answers[answered++] = read();
+        return answers;
+    }
+
+    /**
+     * Scores many sentences in a pipelined batch
+     */
+    public synchronized double[] getSentenceProbabilities(Collection<List<String>> sentences) {
+        try {
+            return pipeline("S", sentences, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Looks up many single-order probabilities (see NGramLanguageModel.getOrderProbability) in a pipelined batch
+     */
+    public synchronized double[] getOrderProbabilities(List<List<String>> histories, List<String> words) {
+        try {
+            return pipeline("P", histories, words);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * See NGramLanguageModel.getWordProbability
+     */
+    public synchronized double getWordProbability(List<String> history, String word) {
+        try {
+            write("W", history, word);
+            out.flush();
+            return read();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public List<String> generateSentence() {
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
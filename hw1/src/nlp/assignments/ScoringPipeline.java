@@ -0,0 +1,153 @@
+package nlp.assignments;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs a stream of items (sentences, N-best lists) through a scoring function in three overlapping stages, for
+ * evaluations where reading the test set, scoring it and adding up the scores would otherwise take turns:
+ *
+ *   - read: one thread pulls items from the source, so for a SentenceCollection reads and tokenizes the file, into a
+ *     bounded queue;
+ *   - score: a fixed pool of threads takes items off that queue and scores them;
+ *   - reduce: the calling thread hands the scores to a reducer in the source's order, holding back any that finish
+ *     ahead of their turn.
+ *
+ * At most capacity items are between being read and being reduced at once: the reader takes a permit for each item
+ * and the reducer gives it back, so a slow stage holds back the ones before it and memory stays bounded. Because
+ * results are reduced one at a time in source order, sums of doubles come out exactly as a sequential loop's would.
+ */
+public class ScoringPipeline {
+
+    private final int threads, capacity;
+
+    /**
+     * @param threads how many threads score items
+     * @param capacity how many items may be read but not yet reduced
+     */
+    public ScoringPipeline(int threads, int capacity) {
+        if (threads < 1 || capacity < 1) throw new IllegalArgumentException("Need at least one thread and one item");
+        this.threads = threads;
+        this.capacity = capacity;
+    }
+
+    public ScoringPipeline(int threads) {
+        this(threads, threads * 16);
+    }
+
+    /**
+     * Scores every item of the source, passing each result (which must not be null) to the reducer in source order
+     * on the calling thread. Returns the number of items.
+     */
+    public <T, R> int run(Iterable<T> source, Function<? super T, ? extends R> score, Consumer<? super R> reducer) {
+        BlockingQueue<Slot<T>> read = new ArrayBlockingQueue<>(capacity);
+        //holds at most capacity results, and the end or failure markers, as the permits bound what is in flight
+        BlockingQueue<Slot<R>> scored = new LinkedBlockingQueue<>();
+        Semaphore inFlight = new Semaphore(capacity);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads + 1, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            pool.execute(() -> {
+                int count = 0;
+                try {
+                    for (T item : source) {
+                        inFlight.acquire();
+                        read.put(new Slot<>(count++, item));
+                    }
+                    scored.add(Slot.end(count));
+                    for (int t = 0; t < threads; t++) read.put(Slot.end(count));
+                } catch (InterruptedException e) {
+                    //the run is over
+                } catch (Throwable e) {
+                    scored.add(Slot.failure(e));
+                }
+            });
+            for (int t = 0; t < threads; t++) {
+                pool.execute(() -> {
+                    try {
+                        for (Slot<T> slot = read.take(); !slot.end; slot = read.take())
+                            scored.add(new Slot<>(slot.index, score.apply(slot.value)));
+                    } catch (InterruptedException e) {
+                        //the run is over
+                    } catch (Throwable e) {
+                        scored.add(Slot.failure(e));
+                    }
+                });
+            }
+
+            Map<Integer, R> early = new HashMap<>();
+            int next = 0, total = -1;
+            while (total < 0 || next < total) {
+                Slot<R> slot = scored.take();
+                if (slot.failure != null) throw rethrow(slot.failure);
+                if (slot.end) {
+                    total = slot.index;
+                    continue;
+                }
+                early.put(slot.index, slot.value);
+                for (R value; (value = early.remove(next)) != null; next++) {
+                    reducer.accept(value);
+                    inFlight.release();
+                }
+            }
+            return total;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable failure) {
+        if (failure instanceof IOException) return new UncheckedIOException((IOException) failure);
+        if (failure instanceof RuntimeException) return (RuntimeException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        return new IllegalStateException(failure);
+    }
+
+    /**
+     * An item or result with its position in the source, or the end of the source (with the item count as its
+     * index), or a stage's failure
+     */
+    private static class Slot<V> {
+        final int index;
+        final V value;
+        final boolean end;
+        final Throwable failure;
+
+        Slot(int index, V value) {
+            this(index, value, false, null);
+        }
+
+        private Slot(int index, V value, boolean end, Throwable failure) {
+            if (value == null && !end && failure == null) throw new NullPointerException("Null item or result");
+            this.index = index;
+            this.value = value;
+            this.end = end;
+            this.failure = failure;
+        }
+
+        static <V> Slot<V> end(int count) {
+            return new Slot<>(count, null, true, null);
+        }
+
+        static <V> Slot<V> failure(Throwable failure) {
+            return new Slot<>(-1, null, false, failure);
+        }
+    }
+}
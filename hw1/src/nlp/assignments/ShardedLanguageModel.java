@@ -0,0 +1,188 @@
+package nlp.assignments;
+
+import nlp.langmodel.LanguageModel;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An interpolated n-gram model whose tables are partitioned by history across several LanguageModelServers, so a
+ * model too large for one JVM (or one machine) can still be scored as one.
+ *
+ * Shard i of N holds every n-gram whose history key hashes to i under shardOf, at every order, plus all the unigrams
+ * (see the sharding NGramLanguageModel constructor). This router only holds the lambdas. To score a sentence it
+ * works out every order's lookup for every token, groups them by shard (unigram lookups are spread by the word),
+ * sends each shard its lookups as one pipelined batch, all shards in parallel, and interpolates the answers.
+ *
+ * The probabilities are the unsharded model's only because every shard is smoothed history by history, as an
+ * unsmoothed, Laplace or Witten-Bell model is; the shard constructor rejects smoothers that are not
+ * (ISmoother.isHistoryLocal), such as Good-Turing, whose count-of-counts would differ from shard to shard.
+ */
+public class ShardedLanguageModel implements LanguageModel, Closeable {
+
+    private final int n;
+    private final double[] weights;
+    private final List<RemoteLanguageModel> shards;
+    private final ExecutorService pool;
+    private final List<Process> processes = new ArrayList<>();
+
+    /**
+     * Routes to shards already being served, in shard order
+     */
+    public ShardedLanguageModel(int n, double[] lambdas, List<RemoteLanguageModel> shards) {
+        this.n = n;
+        this.weights = LambdaOptimizer.toWeights(lambdas);
+        this.shards = shards;
+        this.pool = Executors.newFixedThreadPool(shards.size());
+    }
+
+    /**
+     * The shard holding the n-grams with the given history key (words separated by single spaces)
+     */
+    static int shardOf(String context, int shards) {
+        return Math.floorMod(context.hashCode(), shards);
+    }
+
+    /**
+     * Starts each shard of an n-gram model as its own LanguageModelServer process on this machine, training on the
+     * assignment data at dataPath, and routes to them. The processes are stopped by close().
+     */
+    public static ShardedLanguageModel startLocalShards(String dataPath, int n, int shardCount) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<>();
+        List<RemoteLanguageModel> shards = new ArrayList<>();
+        try {
+            for (int shard = 0; shard < shardCount; shard++) {
+                processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        LanguageModelServer.class.getName(), "-path", dataPath, "-n", Integer.toString(n),
+                        "-shard", Integer.toString(shard), "-shards", Integer.toString(shardCount), "-port", "0")
+                        .redirectError(ProcessBuilder.Redirect.INHERIT).start());
+            }
+            for (Process process : processes) shards.add(new RemoteLanguageModel("localhost", awaitPort(process)));
+        } catch (IOException | RuntimeException e) {
+            for (RemoteLanguageModel shard : shards) shard.close();
+            for (Process process : processes) process.destroy();
+            throw e;
+        }
+
+        ShardedLanguageModel model = new ShardedLanguageModel(n, LanguageModelServer.DEFAULT_LAMBDAS[n - 1], shards);
+        model.processes.addAll(processes);
+        return model;
+    }
+
+    /**
+     * Reads a server process's output until it reports its port, then keeps draining it in the background
+     */
+    private static int awaitPort(Process process) throws IOException {
+        BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                StandardCharsets.UTF_8));
+        String line;
+        while ((line = out.readLine()) != null) {
+            if (!line.startsWith("SERVING")) continue;
+
+            Thread drain = new Thread(() -> {
+                try {
+                    while (out.readLine() != null) ;
+                } catch (IOException ignored) {
+                }
+            });
+            drain.setDaemon(true);
+            drain.start();
+            return Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+        }
+        throw new IOException("Shard server exited before serving");
+    }
+
+    @Override
+    public double getSentenceProbability(List<String> sentence) {
+        List<String> stoppedSentence = new ArrayList<>(Collections.nCopies(n - 1, NGramLanguageModel.start));
+        stoppedSentence.addAll(sentence);
+        stoppedSentence.add(NGramLanguageModel.stop);
+        int tokens = sentence.size() + 1;
+
+        //each shard's lookups, and where each answer goes in rows (token * n + order index, highest order first)
+        List<List<List<String>>> histories = new ArrayList<>();
+        List<List<String>> words = new ArrayList<>();
+        List<List<Integer>> slots = new ArrayList<>();
+        for (int s = 0; s < shards.size(); s++) {
+            histories.add(new ArrayList<>());
+            words.add(new ArrayList<>());
+            slots.add(new ArrayList<>());
+        }
+
+        for (int t = 0; t < tokens; t++) {
+            int i = n - 1 + t;
+            String word = stoppedSentence.get(i);
+            for (int order = n; order >= 1; order--) {
+                List<String> history = stoppedSentence.subList(i - order + 1, i);
+                int s = shardOf(order == 1 ? word : String.join(" ", history), shards.size());
+                histories.get(s).add(history);
+                words.get(s).add(word);
+                slots.get(s).add(t * n + n - order);
+            }
+        }
+
+        List<Future<double[]>> answers = new ArrayList<>();
+        for (int s = 0; s < shards.size(); s++) {
+            RemoteLanguageModel shard = shards.get(s);
+            List<List<String>> shardHistories = histories.get(s);
+            List<String> shardWords = words.get(s);
+            answers.add(shardHistories.isEmpty() ? null
+                    : pool.submit(() -> shard.getOrderProbabilities(shardHistories, shardWords)));
+        }
+
+        double[] rows = new double[tokens * n];
+        try {
+            for (int s = 0; s < shards.size(); s++) {
+                if (answers.get(s) == null) continue;
+                double[] shardAnswers = answers.get(s).get();
+                for (int k = 0; k < shardAnswers.length; k++) rows[slots.get(s).get(k)] = shardAnswers[k];
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+
+        double result = 1.0;
+        for (int t = 0; t < tokens; t++) {
+            double probability = 0.0;
+            for (int j = 0; j < n; j++) probability += weights[j] * rows[t * n + j];
+            result *= probability;
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> generateSentence() {
+        return null;
+    }
+
+    /**
+     * Disconnects from the shards, and stops them if they were started by startLocalShards
+     */
+    @Override
+    public void close() {
+        pool.shutdownNow();
+        for (RemoteLanguageModel shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException ignored) {
+            }
+        }
+        for (Process process : processes) process.destroy();
+    }
+}
@@ -0,0 +1,142 @@
+package nlp.assignments;
+
+import java.util.Arrays;
+
+/**
+ * A read-only ContextTrie in a fraction of the memory, for serving the largest models.
+ *
+ * Nodes are renumbered breadth first, with each node's children in word order, so the children of every node are
+ * consecutive and the child at position j of the concatenated child lists is node j + 1: child pointers are implied
+ * and need not be stored. What is left is compressed:
+ *
+ *   - the child and word list offsets of each node are non-decreasing, so are Elias-Fano coded;
+ *   - each node's child words and following words are sorted, so adding to each list the last value of the list
+ *     before it (plus one) makes the concatenation of all of them strictly increasing, and it is Elias-Fano coded too;
+ *   - probabilities and held-back masses are replaced by indices into a table of the distinct values, packed in as
+ *     many bits as that table needs, so lookups return exactly the values of the uncompressed trie.
+ *
+ * A lookup binary searches a node's range of the coded list, each probe an Elias-Fano access.
+ */
+class SuccinctContextTrie extends NGramTrie {
+
+    private final EliasFano childOffsets, childWords, wordOffsets, words;
+    private final PackedInts probabilities, heldBack;
+    private final double[] values;
+
+    SuccinctContextTrie(ContextTrie trie) {
+        super(trie.ngramCounts, trie.contextCounts);
+        int nodes = trie.heldBack.length;
+
+        //breadth first order, as the old ids of the new
+        int[] order = new int[nodes];
+        int tail = 1;
+        for (int head = 0; head < tail; head++)
+            for (int j = trie.childOffsets[order[head]]; j < trie.childOffsets[order[head] + 1]; j++)
+                order[tail++] = trie.childNodes[j];
+
+        values = distinctValues(trie);
+
+        long[] childOffsetValues = new long[nodes + 1], childWordValues = new long[nodes - 1];
+        long[] wordOffsetValues = new long[nodes + 1], wordValues = new long[trie.words.length];
+        int[] probabilityIndices = new int[trie.words.length], heldBackIndices = new int[nodes];
+        int children = 0, following = 0;
+        long lastChild = -1, lastWord = -1;
+        for (int k = 0; k < nodes; k++) {
+            int old = order[k];
+            childOffsetValues[k] = children;
+            long base = lastChild + 1;
+            for (int j = trie.childOffsets[old]; j < trie.childOffsets[old + 1]; j++)
+                childWordValues[children++] = lastChild = base + trie.childWords[j];
+
+            wordOffsetValues[k] = following;
+            base = lastWord + 1;
+            for (int j = trie.wordOffsets[old]; j < trie.wordOffsets[old + 1]; j++) {
+                probabilityIndices[following] = Arrays.binarySearch(values, trie.probabilities[j]);
+                wordValues[following++] = lastWord = base + trie.words[j];
+            }
+            heldBackIndices[k] = Arrays.binarySearch(values, trie.heldBack[old]);
+        }
+        childOffsetValues[nodes] = children;
+        wordOffsetValues[nodes] = following;
+
+        childOffsets = new EliasFano(childOffsetValues, nodes + 1);
+        childWords = new EliasFano(childWordValues, children);
+        wordOffsets = new EliasFano(wordOffsetValues, nodes + 1);
+        words = new EliasFano(wordValues, following);
+        probabilities = new PackedInts(probabilityIndices, values.length);
+        heldBack = new PackedInts(heldBackIndices, values.length);
+    }
+
+    private static double[] distinctValues(ContextTrie trie) {
+        double[] all = Arrays.copyOf(trie.probabilities, trie.probabilities.length + trie.heldBack.length);
+        System.arraycopy(trie.heldBack, 0, all, trie.probabilities.length, trie.heldBack.length);
+        Arrays.sort(all);
+        int distinct = 0;
+        for (int j = 0; j < all.length; j++) if (j == 0 || all[j] != all[distinct - 1]) all[distinct++] = all[j];
+        return Arrays.copyOf(all, distinct);
+    }
+
+    /**
+     * The index in the coded list of the given word within [from, to), where each list's values are offset by the
+     * value before it plus one, or -1
+     */
+    private static int find(EliasFano list, int from, int to, int word) {
+        if (from == to) return -1;
+        long base = from == 0 ? 0 : list.get(from - 1) + 1;
+        return list.find(from, to, base + word);
+    }
+
+    @Override
+    int child(int node, int word) {
+        int j = find(childWords, (int) childOffsets.get(node), (int) childOffsets.get(node + 1), word);
+        return j < 0 ? -1 : j + 1;
+    }
+
+    @Override
+    double probability(int node, int word) {
+        int j = find(words, (int) wordOffsets.get(node), (int) wordOffsets.get(node + 1), word);
+        return j < 0 ? 0.0 : values[probabilities.get(j)];
+    }
+
+    @Override
+    double heldBack(int node) {
+        return values[heldBack.get(node)];
+    }
+
+    @Override
+    long bytes() {
+        return childOffsets.bytes() + childWords.bytes() + wordOffsets.bytes() + words.bytes()
+                + probabilities.bytes() + heldBack.bytes() + 8L * values.length + 16;
+    }
+
+    /**
+     * Ints below a known bound, packed in just enough bits each
+     */
+    private static class PackedInts {
+        private final int bits;
+        private final long[] packed;
+
+        PackedInts(int[] ints, int bound) {
+            bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(bound - 1));
+            packed = new long[(int) (((long) ints.length * bits + 63) >>> 6)];
+            for (int i = 0; i < ints.length; i++) {
+                long bit = (long) i * bits;
+                int word = (int) (bit >>> 6), offset = (int) (bit & 63);
+                packed[word] |= (long) ints[i] << offset;
+                if (offset + bits > 64) packed[word + 1] |= (long) ints[i] >>> (64 - offset);
+            }
+        }
+
+        int get(int i) {
+            long bit = (long) i * bits;
+            int word = (int) (bit >>> 6), offset = (int) (bit & 63);
+            long value = packed[word] >>> offset;
+            if (offset + bits > 64) value |= packed[word + 1] << (64 - offset);
+            return (int) (value & ((1L << bits) - 1));
+        }
+
+        long bytes() {
+            return 8L * packed.length + 16;
+        }
+    }
+}
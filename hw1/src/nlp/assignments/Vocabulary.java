@@ -0,0 +1,134 @@
+package nlp.assignments;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A two-way mapping between words and dense int ids, assigned in order of first appearance.
+ *
+ * A vocabulary made by build() is closed: it holds the start, stop and unknown symbols plus the training words that
+ * pass a count cutoff, and map() replaces every other word with the unknown word. Training, N-best loading and
+ * scoring can share one, so the long tail of rare words is counted, and looked up, as a single word.
+ */
+public class Vocabulary {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> words = new ArrayList<>();
+
+    /**
+     * Gets the id of a word, assigning the next free id if it has not been seen before
+     */
+    public int index(String word) {
+        Integer id = ids.get(word);
+        if (id == null) {
+            id = words.size();
+            ids.put(word, id);
+            words.add(word);
+        }
+        return id;
+    }
+
+    /**
+     * Gets the id of a word, or -1 if it has not been seen
+     */
+    public int indexOf(String word) {
+        Integer id = ids.get(word);
+        return id == null ? -1 : id;
+    }
+
+    public String word(int id) {
+        return words.get(id);
+    }
+
+    public int size() {
+        return words.size();
+    }
+
+    public boolean contains(String word) {
+        return ids.containsKey(word);
+    }
+
+    /**
+     * The words of the vocabulary, as a read-only set
+     */
+    public Set<String> asSet() {
+        return Collections.unmodifiableSet(ids.keySet());
+    }
+
+    /**
+     * Builds a closed vocabulary from one counting pass over the training sentences: the start, stop and unknown
+     * symbols, then the words seen at least minCount times, most frequent first (ties alphabetically), up to maxSize
+     * words in all
+     */
+    public static Vocabulary build(Collection<List<String>> sentences, int minCount, int maxSize) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (List<String> sentence : sentences) for (String word : sentence) counts.merge(word, 1, Integer::sum);
+
+        List<Map.Entry<String, Integer>> kept = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) if (entry.getValue() >= minCount) kept.add(entry);
+        kept.sort((a, b) -> a.getValue().equals(b.getValue()) ? a.getKey().compareTo(b.getKey())
+                : Integer.compare(b.getValue(), a.getValue()));
+
+        Vocabulary vocabulary = new Vocabulary();
+        vocabulary.index(NGramLanguageModel.start);
+        vocabulary.index(NGramLanguageModel.stop);
+        vocabulary.index(NGramLanguageModel.unknown);
+        for (Map.Entry<String, Integer> entry : kept) {
+            if (vocabulary.size() >= maxSize) break;
+            vocabulary.index(entry.getKey());
+        }
+        return vocabulary;
+    }
+
+    /**
+     * The word itself if it is in the vocabulary, else the unknown word
+     */
+    public String map(String word) {
+        return ids.containsKey(word) ? word : NGramLanguageModel.unknown;
+    }
+
+    /**
+     * A copy of the sentence with every word not in the vocabulary replaced by the unknown word
+     */
+    public List<String> map(List<String> sentence) {
+        List<String> mapped = new ArrayList<>(sentence.size());
+        for (String word : sentence) mapped.add(map(word));
+        return mapped;
+    }
+
+    /**
+     * A view of the sentences with every word not in the vocabulary replaced by the unknown word, mapped a sentence
+     * at a time as it is iterated
+     */
+    public Collection<List<String>> map(Collection<List<String>> sentences) {
+        return new AbstractCollection<List<String>>() {
+            @Override
+            public Iterator<List<String>> iterator() {
+                Iterator<List<String>> iterator = sentences.iterator();
+                return new Iterator<List<String>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public List<String> next() {
+                        return map(iterator.next());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return sentences.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,39 @@
+package nlp.assignments;
+
+import nlp.util.Counter;
+import nlp.util.CounterMap;
+
+/**
+ * Witten-Bell smoothing: a history followed by T distinct words over N tokens is taken to have produced a new word
+ * T times, so words never seen after it get probability mass T / (N + T) and seen words keep c / (N + T). This is
+ * the backoff form: NGramLanguageModel shares the T / (N + T) among the unseen words alone, in proportion to their
+ * unigram probabilities, and seen words get no share of it.
+ *
+ * Counts are left as they are and T is held back, under the unknown word for the unigram Counter and under the
+ * unseen key for each history of a CounterMap, which is a single pass over the entries.
+ */
+public class WittenBellSmoother implements ISmoother {
+
+    @Override
+    public Counter<String> smoothCounter(Counter<String> toSmooth) {
+        //keep any rare words mapped to the unknown word by a vocabulary cutoff, less NGramLanguageModel's placeholder
+        double mapped = toSmooth.removeKey(NGramLanguageModel.unknown) - 1;
+        if (mapped > 0) toSmooth.setCount(NGramLanguageModel.unknown, mapped);
+        toSmooth.incrementCount(NGramLanguageModel.unknown, Math.max(toSmooth.size(), 1));
+        return toSmooth;
+    }
+
+    @Override
+    public CounterMap<String, String> smoothCounterMap(CounterMap<String, String> toSmooth) {
+        for (String context : toSmooth.keySet()) {
+            Counter<String> counter = toSmooth.getCounter(context);
+            toSmooth.setCount(context, NGramLanguageModel.unseen, counter.size());
+        }
+        return toSmooth;
+    }
+
+    @Override
+    public boolean reservesUnseenMass() {
+        return true;
+    }
+}
@@ -0,0 +1,187 @@
+package nlp.assignments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Clusters words into classes with the predictive exchange algorithm (Uszkoreit & Brants, 2008), which maximises the
+ * likelihood of the class bigram model P(w | v) = P(w | c(w)) P(c(w) | v). Up to terms that do not depend on the
+ * clustering, that log likelihood is
+ *
+ *   sum over words v and classes c of N(v, c) log N(v, c)  -  sum over classes c of N(c) log N(c)
+ *
+ * where N(v, c) counts the tokens of class c following v and N(c) the tokens of class c. Each pass moves every word to
+ * whichever class most increases it. Words are taken in chunks: the best class for each word of a chunk is found in
+ * parallel against the current counts, then the chunk's moves are applied one by one, so a pass is multi-threaded
+ * while the counts stay consistent. Finding a word's best class costs one sweep of the counts of its predecessors.
+ *
+ * The stop symbol is kept in a class of its own; the start symbol is never predicted so has no class.
+ */
+public class WordClusterer {
+
+    private static final int CHUNK = 512;
+
+    private final Vocabulary vocabulary = new Vocabulary();
+    private final int classes, stopId;
+
+    //for each word: its count, its predecessors and how often each precedes it, and its class
+    private final long[] wordCounts;
+    private final int[][] predecessors;
+    private final int[][] predecessorCounts;
+    private final int[] classOf;
+
+    //N(v, c) as followingCounts[v][c], and N(c)
+    private final long[][] followingCounts;
+    private final long[] classCounts;
+
+    private WordClusterer(Collection<List<String>> sentences, int classes) {
+        this.classes = classes;
+        int startId = vocabulary.index(NGramLanguageModel.start);
+        stopId = vocabulary.index(NGramLanguageModel.stop);
+
+        Map<Long, Integer> bigrams = new HashMap<>();
+        for (List<String> sentence : sentences) {
+            int previous = startId;
+            for (int i = 0; i <= sentence.size(); i++) {
+                int word = i < sentence.size() ? vocabulary.index(sentence.get(i)) : stopId;
+                bigrams.merge(((long) previous << 32) | word, 1, Integer::sum);
+                previous = word;
+            }
+        }
+
+        int size = vocabulary.size();
+        wordCounts = new long[size];
+        int[] predecessorSizes = new int[size];
+        for (Map.Entry<Long, Integer> bigram : bigrams.entrySet()) {
+            int word = (int) (long) bigram.getKey();
+            wordCounts[word] += bigram.getValue();
+            predecessorSizes[word]++;
+        }
+        predecessors = new int[size][];
+        predecessorCounts = new int[size][];
+        for (int w = 0; w < size; w++) {
+            predecessors[w] = new int[predecessorSizes[w]];
+            predecessorCounts[w] = new int[predecessorSizes[w]];
+            predecessorSizes[w] = 0;
+        }
+        for (Map.Entry<Long, Integer> bigram : bigrams.entrySet()) {
+            int previous = (int) (bigram.getKey() >>> 32), word = (int) (long) bigram.getKey();
+            predecessors[word][predecessorSizes[word]] = previous;
+            predecessorCounts[word][predecessorSizes[word]++] = bigram.getValue();
+        }
+
+        //deal the words out by frequency, so every class starts with some frequent words; stop gets the last class
+        Integer[] byFrequency = new Integer[size];
+        for (int w = 0; w < size; w++) byFrequency[w] = w;
+        Arrays.sort(byFrequency, (a, b) -> Long.compare(wordCounts[b], wordCounts[a]));
+        classOf = new int[size];
+        int next = 0;
+        for (int w : byFrequency) if (w != stopId && w != startId) classOf[w] = next++ % classes;
+        classOf[stopId] = classes;
+
+        followingCounts = new long[size][classes + 1];
+        classCounts = new long[classes + 1];
+        for (int w = 0; w < size; w++) {
+            if (w == startId) continue;
+            classCounts[classOf[w]] += wordCounts[w];
+            for (int p = 0; p < predecessors[w].length; p++)
+                followingCounts[predecessors[w][p]][classOf[w]] += predecessorCounts[w][p];
+        }
+    }
+
+    private static double xLogX(double x) {
+        return x <= 0 ? 0.0 : x * Math.log(x);
+    }
+
+    /**
+     * The class whose gain in log likelihood from taking the word is greatest, were it first taken out of its own
+     */
+    private int bestClass(int word) {
+        int current = classOf[word];
+        double[] gains = new double[classes];
+        int[] wordPredecessors = predecessors[word], counts = predecessorCounts[word];
+
+        for (int p = 0; p < wordPredecessors.length; p++) {
+            long[] following = followingCounts[wordPredecessors[p]];
+            int n = counts[p];
+            for (int c = 0; c < classes; c++) {
+                long without = c == current ? following[c] - n : following[c];
+                gains[c] += xLogX(without + n) - xLogX(without);
+            }
+        }
+
+        //stay put unless another class is strictly better
+        int best = current;
+        double bestGain = gains[current] - classGain(current, word);
+        for (int c = 0; c < classes; c++) {
+            double gain = gains[c] - classGain(c, word);
+            if (gain > bestGain + 1e-9) {
+                best = c;
+                bestGain = gain;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The increase in N(c) log N(c) from the word joining class c, were it first taken out of its own
+     */
+    private double classGain(int c, int word) {
+        long without = c == classOf[word] ? classCounts[c] - wordCounts[word] : classCounts[c];
+        return xLogX(without + wordCounts[word]) - xLogX(without);
+    }
+
+    private void move(int word, int to) {
+        int from = classOf[word];
+        classOf[word] = to;
+        classCounts[from] -= wordCounts[word];
+        classCounts[to] += wordCounts[word];
+        for (int p = 0; p < predecessors[word].length; p++) {
+            long[] following = followingCounts[predecessors[word][p]];
+            following[from] -= predecessorCounts[word][p];
+            following[to] += predecessorCounts[word][p];
+        }
+    }
+
+    /**
+     * One pass over the vocabulary, returning how many words changed class
+     */
+    private int exchange() {
+        List<Integer> words = new ArrayList<>();
+        for (int w = 0; w < vocabulary.size(); w++) if (w != stopId && wordCounts[w] > 0) words.add(w);
+
+        int moves = 0;
+        for (int from = 0; from < words.size(); from += CHUNK) {
+            List<Integer> chunk = words.subList(from, Math.min(from + CHUNK, words.size()));
+            int[] best = IntStream.range(0, chunk.size()).parallel().map(i -> bestClass(chunk.get(i))).toArray();
+            for (int i = 0; i < best.length; i++) {
+                if (best[i] == classOf[chunk.get(i)]) continue;
+                move(chunk.get(i), best[i]);
+                moves++;
+            }
+        }
+        return moves;
+    }
+
+    /**
+     * Clusters the words of the given sentences into the given number of classes, running exchange passes until
+     * no word moves or maxIterations is reached. Returns each word's class, from 0 to classes - 1; the stop symbol
+     * is left out.
+     */
+    public static Map<String, Integer> cluster(Collection<List<String>> sentences, int classes, int maxIterations) {
+        WordClusterer clusterer = new WordClusterer(sentences, classes);
+        for (int iteration = 0; iteration < maxIterations; iteration++) if (clusterer.exchange() == 0) break;
+
+        Map<String, Integer> clusters = new HashMap<>();
+        for (int w = 0; w < clusterer.vocabulary.size(); w++) {
+            if (w == clusterer.stopId || clusterer.wordCounts[w] == 0) continue;
+            clusters.put(clusterer.vocabulary.word(w), clusterer.classOf[w]);
+        }
+        return clusters;
+    }
+}
@@ -0,0 +1,360 @@
+package nlp.assignments;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A word lattice: an acyclic graph of arcs from one start node to one end node, each arc labelled with a word (or
+ * nothing) and an acoustic score, every path from start to end being a hypothesis whose acoustic score is the sum of
+ * its arcs'. Rescoring finds the path with the best acoustic plus language model score by dynamic programming over
+ * the nodes in topological order, recombining the paths that reach a node with the same n-1 words of history into a
+ * single state, so each arc is scored once per distinct history reaching it rather than once per path through it.
+ *
+ * Built from an N-best list, the hypotheses are merged into a prefix tree, their acoustic scores pushed towards the
+ * start (each arc carrying the best score to be had through it less the best from its source) and nodes with the
+ * same arcs out merged from the end backwards, so shared prefixes and suffixes are stored and scored once and every
+ * hypothesis keeps its acoustic score exactly. As an N-best list only scores whole sentences, such a lattice holds
+ * just the listed hypotheses; a decoder's lattice, read from an HTK lattice file, holds as many paths as its arcs
+ * allow.
+ *
+ * Nodes are numbered in topological order, 0 the start and the last the end, and the arcs out of node k are
+ * arcWords/arcTargets/arcScores[arcOffsets[k] .. arcOffsets[k + 1]).
+ */
+public class WordLattice {
+
+    /**
+     * The best path through a lattice: its words and its total score
+     */
+    public static class Path {
+        public final List<String> words;
+        public final double score;
+
+        Path(List<String> words, double score) {
+            this.words = words;
+            this.score = score;
+        }
+    }
+
+    private final int nodes;
+    private final int[] arcOffsets, arcTargets;
+    //null for an arc without a word
+    private final String[] arcWords;
+    private final double[] arcScores;
+    //added to every path's acoustic score, holding what was pushed off the arcs
+    private final double initialScore;
+
+    /**
+     * From arcs between nodes numbered in any way (from[i] -> to[i], labelled words[i] with scores[i]), which must
+     * form an acyclic graph in which every node lies on a path from start to end
+     */
+    WordLattice(int nodes, int start, int end, int[] from, int[] to, String[] words, double[] scores,
+                double initialScore) {
+        this.nodes = nodes;
+        this.initialScore = initialScore;
+
+        //renumber the nodes in topological order from the start, which puts the end last if every node leads to it
+        int[] inDegree = new int[nodes], outDegree = new int[nodes];
+        for (int i = 0; i < from.length; i++) {
+            inDegree[to[i]]++;
+            outDegree[from[i]]++;
+        }
+        if (inDegree[start] != 0 || outDegree[end] != 0)
+            throw new IllegalArgumentException("Arcs lead into the start or out of the end");
+        int[][] out = new int[nodes][];
+        for (int k = 0; k < nodes; k++) out[k] = new int[outDegree[k]];
+        int[] fill = new int[nodes];
+        for (int i = 0; i < from.length; i++) out[from[i]][fill[from[i]]++] = i;
+
+        int[] number = new int[nodes];
+        Arrays.fill(number, -1);
+        int numbered = 0;
+        Deque<Integer> ready = new ArrayDeque<>();
+        ready.add(start);
+        while (!ready.isEmpty()) {
+            int node = ready.poll();
+            number[node] = numbered++;
+            for (int i : out[node])
+                if (--inDegree[to[i]] == 0) ready.add(to[i]);
+        }
+        if (numbered != nodes || number[end] != nodes - 1)
+            throw new IllegalArgumentException("Lattice has a cycle or a node off every path from start to end");
+
+        int[] byNumber = new int[nodes];
+        for (int k = 0; k < nodes; k++) byNumber[number[k]] = k;
+        arcOffsets = new int[nodes + 1];
+        arcTargets = new int[from.length];
+        arcWords = new String[from.length];
+        arcScores = new double[from.length];
+        int j = 0;
+        for (int k = 0; k < nodes; k++) {
+            for (int i : out[byNumber[k]]) {
+                arcTargets[j] = number[to[i]];
+                arcWords[j] = words[i];
+                arcScores[j] = scores[i];
+                j++;
+            }
+            arcOffsets[k + 1] = j;
+        }
+    }
+
+    /**
+     * The lattice of an N-best list's hypotheses and their acoustic scores, prefixes and suffixes shared
+     */
+    public static WordLattice fromNBestList(SpeechNBestList speechNBestList) {
+        //a prefix tree, children created after their parents, each hypothesis ending in an arc without a word to
+        //the end node, which carries its acoustic score
+        List<Map<String, Integer>> children = new ArrayList<>();
+        children.add(new HashMap<>());
+        Map<Integer, Double> finalScores = new LinkedHashMap<>();
+        for (List<String> hypothesis : speechNBestList.getNBestSentences()) {
+            int node = 0;
+            for (String word : hypothesis) {
+                Integer child = children.get(node).get(word);
+                if (child == null) {
+                    child = children.size();
+                    children.get(node).put(word, child);
+                    children.add(new HashMap<>());
+                }
+                node = child;
+            }
+            double score = speechNBestList.getAcousticScore(hypothesis);
+            finalScores.merge(node, score, Math::max);
+        }
+        int end = children.size(), nodes = end + 1;
+        if (finalScores.isEmpty()) throw new IllegalArgumentException("Empty N-best list");
+
+        //push the scores: best[k] is the best acoustic score from node k to the end, and each arc is reweighted by
+        //its target's best less its source's, which leaves 0 on every arc of a node's best continuation
+        double[] best = new double[nodes];
+        for (int k = end - 1; k >= 0; k--) {
+            double nodeBest = finalScores.getOrDefault(k, Double.NEGATIVE_INFINITY);
+            for (int child : children.get(k).values()) nodeBest = Math.max(nodeBest, best[child]);
+            best[k] = nodeBest;
+        }
+
+        //merge nodes with the same (word, pushed score, merged target) arcs out, from the end backwards
+        int[] merged = new int[nodes];
+        merged[end] = end;
+        Map<List<Object>, Integer> signatures = new HashMap<>();
+        List<Object[]> arcs = new ArrayList<>();
+        for (int k = end - 1; k >= 0; k--) {
+            List<Object[]> nodeArcs = new ArrayList<>();
+            if (finalScores.containsKey(k))
+                nodeArcs.add(new Object[]{null, finalScores.get(k) - best[k], end});
+            for (Map.Entry<String, Integer> child : children.get(k).entrySet())
+                nodeArcs.add(new Object[]{child.getKey(), best[child.getValue()] - best[k],
+                        merged[child.getValue()]});
+            nodeArcs.sort((a, b) -> a[0] == null ? (b[0] == null ? 0 : -1)
+                    : b[0] == null ? 1 : ((String) a[0]).compareTo((String) b[0]));
+            List<Object> signature = new ArrayList<>();
+            for (Object[] arc : nodeArcs) Collections.addAll(signature, arc);
+
+            Integer same = signatures.get(signature);
+            if (same != null && k != 0) {
+                merged[k] = same;
+                continue;
+            }
+            merged[k] = k;
+            signatures.put(signature, k);
+            for (Object[] arc : nodeArcs) arcs.add(new Object[]{k, arc[0], arc[1], arc[2]});
+        }
+
+        //compact the surviving nodes' numbers
+        int[] number = new int[nodes];
+        int kept = 0;
+        for (int k = 0; k < nodes; k++) number[k] = merged[k] == k ? kept++ : -1;
+        int[] from = new int[arcs.size()], to = new int[arcs.size()];
+        String[] words = new String[arcs.size()];
+        double[] scores = new double[arcs.size()];
+        for (int i = 0; i < arcs.size(); i++) {
+            Object[] arc = arcs.get(i);
+            from[i] = number[(Integer) arc[0]];
+            words[i] = (String) arc[1];
+            scores[i] = (Double) arc[2];
+            to[i] = number[(Integer) arc[3]];
+        }
+        return new WordLattice(kept, number[0], number[end], from, to, words, scores, best[0]);
+    }
+
+    /**
+     * Reads a lattice in HTK's standard lattice format (SLF): a header giving the start and end nodes (if not, the
+     * nodes without arcs in or out), node lines "I=k W=word" and arc lines "J=i S=from E=to a=acoustic", the word
+     * taken from the arc's own W= or else its end node's. Language model scores in the file are ignored, and
+     * sentence markers and !NULL taken as arcs without a word.
+     */
+    public static WordLattice read(File file) throws IOException {
+        Map<Integer, String> nodeWords = new HashMap<>();
+        List<Map<String, String>> links = new ArrayList<>();
+        int nodes = -1, start = -1, end = -1;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                Map<String, String> fields = new HashMap<>();
+                for (String field : line.split("\\s+")) {
+                    int equals = field.indexOf('=');
+                    if (equals > 0) fields.put(field.substring(0, equals), field.substring(equals + 1));
+                }
+                if (fields.containsKey("J")) links.add(fields);
+                else if (fields.containsKey("I")) {
+                    if (fields.containsKey("W")) nodeWords.put(Integer.parseInt(fields.get("I")), fields.get("W"));
+                } else {
+                    if (fields.containsKey("N")) nodes = Integer.parseInt(fields.get("N"));
+                    if (fields.containsKey("start")) start = Integer.parseInt(fields.get("start"));
+                    if (fields.containsKey("end")) end = Integer.parseInt(fields.get("end"));
+                }
+            }
+        }
+
+        int[] from = new int[links.size()], to = new int[links.size()];
+        String[] words = new String[links.size()];
+        double[] scores = new double[links.size()];
+        for (int i = 0; i < links.size(); i++) {
+            Map<String, String> link = links.get(i);
+            from[i] = Integer.parseInt(link.get("S"));
+            to[i] = Integer.parseInt(link.get("E"));
+            String word = link.containsKey("W") ? link.get("W") : nodeWords.get(to[i]);
+            words[i] = word == null || word.equals("!NULL") || word.equals("<s>") || word.equals("</s>")
+                    || word.equals("!SENT_START") || word.equals("!SENT_END") ? null : word;
+            scores[i] = link.containsKey("a") ? Double.parseDouble(link.get("a")) : 0.0;
+            nodes = Math.max(nodes, Math.max(from[i], to[i]) + 1);
+        }
+        if (nodes < 1) throw new IOException("No lattice in " + file);
+
+        if (start < 0 || end < 0) {
+            boolean[] hasIn = new boolean[nodes], hasOut = new boolean[nodes];
+            for (int i = 0; i < links.size(); i++) {
+                hasOut[from[i]] = true;
+                hasIn[to[i]] = true;
+            }
+            for (int k = 0; k < nodes; k++) {
+                if (start < 0 && !hasIn[k]) start = k;
+                if (end < 0 && !hasOut[k]) end = k;
+            }
+        }
+        try {
+            return new WordLattice(nodes, start, end, from, to, words, scores, 0.0);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    public int getNodeCount() {
+        return nodes;
+    }
+
+    public int getArcCount() {
+        return arcTargets.length;
+    }
+
+    /**
+     * How many paths (hypotheses) the lattice holds, counted without listing them
+     */
+    public double getPathCount() {
+        double[] paths = new double[nodes];
+        paths[nodes - 1] = 1.0;
+        for (int k = nodes - 2; k >= 0; k--)
+            for (int j = arcOffsets[k]; j < arcOffsets[k + 1]; j++) paths[k] += paths[arcTargets[j]];
+        return paths[0];
+    }
+
+    /**
+     * A partial path's best score reaching a node with a given history, and how it got there
+     */
+    private static class State {
+        final String[] history;
+        final double score;
+        final State previous;
+        final String word;
+
+        State(String[] history, double score, State previous, String word) {
+            this.history = history;
+            this.score = score;
+            this.previous = previous;
+            this.word = word;
+        }
+    }
+
+    /**
+     * The path maximizing the natural log of its language model probability (including the stop symbol's) plus its
+     * acoustic score times the acoustic weight, as calculateWordErrorRate scores each N-best hypothesis (with a
+     * weight of 1/16). Only the model's last n-1 words of history are kept apart, so paths agreeing on them are
+     * recombined into the better of them at each node.
+     */
+    public Path rescore(NGramLanguageModel languageModel, double acousticWeight) {
+        int n = languageModel.getOrder();
+        //log probabilities already asked for, keyed by history and word
+        Map<String, Double> logProbabilities = new HashMap<>();
+        List<Map<String, State>> states = new ArrayList<>(nodes);
+        for (int k = 0; k < nodes; k++) states.add(new HashMap<>());
+        String[] startHistory = new String[n - 1];
+        Arrays.fill(startHistory, NGramLanguageModel.start);
+        states.get(0).put(String.join(" ", startHistory), new State(startHistory, initialScore * acousticWeight,
+                null, null));
+
+        for (int k = 0; k < nodes - 1; k++) {
+            for (State state : states.get(k).values()) {
+                for (int j = arcOffsets[k]; j < arcOffsets[k + 1]; j++) {
+                    String word = arcWords[j];
+                    double score = state.score + arcScores[j] * acousticWeight;
+                    String[] history = state.history;
+                    if (word != null) {
+                        score += logProbability(languageModel, history, word, logProbabilities);
+                        if (n > 1) {
+                            history = Arrays.copyOfRange(history, 1, n);
+                            history[n - 2] = word;
+                        }
+                    }
+                    Map<String, State> targetStates = states.get(arcTargets[j]);
+                    String key = String.join(" ", history);
+                    State existing = targetStates.get(key);
+                    if (existing == null || score > existing.score)
+                        targetStates.put(key, new State(history, score, state, word));
+                }
+            }
+            //no arc reaches back here, so this node's states are done with
+            states.set(k, null);
+        }
+
+        State best = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (State state : states.get(nodes - 1).values()) {
+            double score = state.score
+                    + logProbability(languageModel, state.history, NGramLanguageModel.stop, logProbabilities);
+            if (best == null || score > bestScore) {
+                best = state;
+                bestScore = score;
+            }
+        }
+        if (best == null) throw new IllegalStateException("No path reaches the end of the lattice");
+
+        List<String> words = new ArrayList<>();
+        for (State state = best; state != null; state = state.previous)
+            if (state.word != null) words.add(state.word);
+        Collections.reverse(words);
+        return new Path(words, bestScore);
+    }
+
+    private static double logProbability(NGramLanguageModel languageModel, String[] history, String word,
+                                         Map<String, Double> logProbabilities) {
+        String key = String.join(" ", history) + " " + word;
+        Double logProbability = logProbabilities.get(key);
+        if (logProbability == null) {
+            logProbability = Math.log(languageModel.getWordProbability(Arrays.asList(history), word));
+            logProbabilities.put(key, logProbability);
+        }
+        return logProbability;
+    }
+}
@@ -1,8 +1,10 @@
 package nlp.util;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
@@ -22,6 +24,9 @@ public class Counter<E> implements Serializable {
 	int cacheModCount = -1;
 	double cacheTotalCount = 0.0;
 
+	transient Counter<Double> cacheCountOfCounts = null;
+	transient int countOfCountsModCount = -1;
+
 	/**
 	 * The elements in the counter.
 	 * 
@@ -39,6 +44,17 @@ public class Counter<E> implements Serializable {
 		return entries.size();
 	}
 
+	/**
+	 * Estimates the heap used by this counter, including its keys, assuming it
+	 * is backed by a HashMap. See MemoryUsage for the assumptions made.
+	 */
+	public long estimateMemoryBytes() {
+		long bytes = MemoryUsage.counterBytes(entries.size());
+		for (E key : entries.keySet())
+			bytes += MemoryUsage.keyBytes(key);
+		return bytes;
+	}
+
 	/**
 	 * True if there are no entries in the counter (false does not mean
 	 * totalCount > 0)
@@ -68,6 +84,7 @@ public class Counter<E> implements Serializable {
 	 * @return the count associated with the key
 	 */
 	public double removeKey(E key) {
+		currentModCount++;
 		Double d = entries.remove(key);
 		return (d == null ? 0.0 : d);
 	}
@@ -92,7 +109,25 @@ public class Counter<E> implements Serializable {
 	 * @return
 	 */
 	public int getFrequencyOfCount(double count) {
-		return Collections.frequency(entries.values(), count);
+		return (int) getCountOfCounts().getCount(count);
+	}
+
+	/**
+	 * Builds the count-of-counts histogram: for each count in this counter, the
+	 * number of keys having that count. It is built in one pass and cached like
+	 * totalCount(), so repeated calls are cheap while the counter is unchanged.
+	 * The returned counter is shared, so don't modify it.
+	 */
+	public Counter<Double> getCountOfCounts() {
+		if (cacheCountOfCounts == null || countOfCountsModCount != currentModCount) {
+			Counter<Double> countOfCounts = new Counter<Double>();
+			for (Double count : entries.values()) {
+				countOfCounts.incrementCount(count, 1.0);
+			}
+			cacheCountOfCounts = countOfCounts;
+			countOfCountsModCount = currentModCount;
+		}
+		return cacheCountOfCounts;
 	}
 
 	/**
@@ -181,7 +216,7 @@ public class Counter<E> implements Serializable {
 
 	/**
 	 * Finds the key with maximum count. This is a linear operation, and ties
-	 * are broken arbitrarily.
+	 * are broken arbitrarily; use topK() for more than one key.
 	 * 
 	 * @return a key with minumum count
 	 */
@@ -215,7 +250,64 @@ public class Counter<E> implements Serializable {
 	 * @return partial string representation
 	 */
 	public String toString(int maxKeysToPrint) {
-		return asPriorityQueue().toString(maxKeysToPrint);
+		List<Entry<E, Double>> top = topEntries(maxKeysToPrint);
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < top.size(); i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(top.get(i).getKey()).append(" : ").append(top.get(i).getValue());
+		}
+		if (top.size() < size())
+			sb.append(top.isEmpty() ? "..." : ", ...");
+		sb.append("]");
+		return sb.toString();
+	}
+
+	/**
+	 * Finds the k keys with the largest counts, in order of decreasing count
+	 * (every key, if there are no more than k). Only a heap of the best k seen
+	 * so far is kept while scanning the entries, so this takes O(n log k) time
+	 * rather than copying and sorting them all. Ties are broken arbitrarily.
+	 * 
+	 * @param k
+	 * @return the keys with the k largest counts
+	 */
+	public List<E> topK(int k) {
+		List<Entry<E, Double>> top = topEntries(k);
+		List<E> keys = new ArrayList<E>(top.size());
+		for (Entry<E, Double> entry : top) {
+			keys.add(entry.getKey());
+		}
+		return keys;
+	}
+
+	/**
+	 * Every key, in order of decreasing count.
+	 */
+	public List<E> getSortedKeys() {
+		return topK(size());
+	}
+
+	private List<Entry<E, Double>> topEntries(int k) {
+		k = Math.min(k, entries.size());
+		if (k <= 0)
+			return Collections.emptyList();
+		// a min-heap, so the weakest of the best k is the one to replace
+		java.util.PriorityQueue<Entry<E, Double>> heap = new java.util.PriorityQueue<Entry<E, Double>>(k,
+				(x, y) -> Double.compare(x.getValue(), y.getValue()));
+		for (Entry<E, Double> entry : entries.entrySet()) {
+			if (heap.size() < k) {
+				heap.add(entry);
+			} else if (entry.getValue() > heap.peek().getValue()) {
+				heap.poll();
+				heap.add(entry);
+			}
+		}
+		List<Entry<E, Double>> top = new ArrayList<Entry<E, Double>>(heap.size());
+		while (!heap.isEmpty())
+			top.add(heap.poll());
+		Collections.reverse(top);
+		return top;
 	}
 
 	/**
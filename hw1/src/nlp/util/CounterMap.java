@@ -85,6 +85,31 @@ public class CounterMap<K, V> implements java.io.Serializable {
 		return valueCounter.getCount(value);
 	}
 
+	/**
+	 * Removes a (key, value) entry, dropping the key's sub-counter if it
+	 * becomes empty. Returns the removed count, or zero if the entry wasn't
+	 * present.
+	 */
+	public double removeCount(K key, V value) {
+		Counter<V> valueCounter = counterMap.get(key);
+		if (valueCounter == null)
+			return 0.0;
+		double count = valueCounter.removeKey(value);
+		if (valueCounter.isEmpty())
+			counterMap.remove(key);
+		currentModCount++;
+		return count;
+	}
+
+	/**
+	 * Removes a key and all of its entries. Returns the removed sub-counter, or
+	 * null if the key wasn't present.
+	 */
+	public Counter<V> removeKey(K key) {
+		currentModCount++;
+		return counterMap.remove(key);
+	}
+
 	/**
 	 * Gets the sub-counter for the given key. If there is none, a counter is
 	 * created for that key, and installed in the CounterMap. You can, for
@@ -126,6 +151,22 @@ public class CounterMap<K, V> implements java.io.Serializable {
 		return cacheTotalCount;
 	}
 
+	/**
+	 * Builds the count-of-counts histogram over every (key, value) entry: for
+	 * each count, the number of entries having that count. This is one pass
+	 * over all entries; unlike Counter's it is not cached, as sub-counters can
+	 * be changed without the CounterMap knowing.
+	 */
+	public Counter<Double> getCountOfCounts() {
+		Counter<Double> countOfCounts = new Counter<Double>();
+		for (Counter<V> counter : counterMap.values()) {
+			for (Map.Entry<V, Double> entry : counter.getEntrySet()) {
+				countOfCounts.incrementCount(entry.getValue(), 1.0);
+			}
+		}
+		return countOfCounts;
+	}
+
 	/**
 	 * Returns the total number of (key, value) entries in the CounterMap (not
 	 * their total counts).
@@ -139,6 +180,22 @@ public class CounterMap<K, V> implements java.io.Serializable {
 		return total;
 	}
 
+	/**
+	 * Estimates the heap used by this CounterMap, including its keys and
+	 * sub-counters, assuming HashMap backing throughout. See MemoryUsage for the
+	 * assumptions made.
+	 */
+	public long estimateMemoryBytes() {
+		long bytes = MemoryUsage.align(MemoryUsage.OBJECT_HEADER + 2
+				* MemoryUsage.REFERENCE + 4 + 4 + 8)
+				+ MemoryUsage.hashMapBytes(counterMap.size());
+		for (Map.Entry<K, Counter<V>> entry : counterMap.entrySet()) {
+			bytes += MemoryUsage.keyBytes(entry.getKey());
+			bytes += entry.getValue().estimateMemoryBytes();
+		}
+		return bytes;
+	}
+
 	/**
 	 * Normalizes the maps inside this CounterMap -- not the CounterMap itself.
 	 */
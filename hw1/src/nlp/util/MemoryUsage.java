@@ -0,0 +1,86 @@
+package nlp.util;
+
+/**
+ * Rough heap-size arithmetic for the collections used by Counter and
+ * CounterMap. The figures assume a 64-bit HotSpot JVM with compressed oops
+ * (12 byte object headers, 4 byte references, 8 byte alignment), the
+ * default for heaps under 32GB. Strings take two bytes per char on Java 8,
+ * and on Java 9 and later one byte per char when every char is Latin-1
+ * (compact strings, on by default), two otherwise.
+ */
+public class MemoryUsage {
+
+	public static final int REFERENCE = 4;
+	public static final int OBJECT_HEADER = 12;
+	public static final int ARRAY_HEADER = 16;
+
+	/** A HashMap.Node: header, hash, key, value and next references. */
+	public static final int HASH_MAP_NODE = 32;
+	/** A HashMap itself, excluding its table. */
+	public static final int HASH_MAP = 48;
+	/** A boxed Double. */
+	public static final int BOXED_DOUBLE = 16;
+	/** Bytes per char of a Latin-1 String on the running JVM. */
+	public static final int STRING_CHAR = System.getProperty(
+			"java.specification.version").startsWith("1.") ? 2 : 1;
+	/** A Counter, excluding its map. */
+	public static final int COUNTER = align(OBJECT_HEADER + REFERENCE + 4 + 4 + 8);
+
+	public static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	static int align(int bytes) {
+		return (bytes + 7) & ~7;
+	}
+
+	/**
+	 * The size of a Latin-1 String of the given length, including its
+	 * backing array.
+	 */
+	public static long stringBytes(int length) {
+		return 24 + align(ARRAY_HEADER + (long) length * STRING_CHAR);
+	}
+
+	/**
+	 * The size of a String, including its backing array.
+	 */
+	public static long stringBytes(String string) {
+		if (STRING_CHAR == 1)
+			for (int i = 0; i < string.length(); i++)
+				if (string.charAt(i) > 0xFF)
+					return 24 + align(ARRAY_HEADER + 2L * string.length());
+		return stringBytes(string.length());
+	}
+
+	/**
+	 * The size of a key object: exact for Strings, a small boxed object
+	 * otherwise.
+	 */
+	public static long keyBytes(Object key) {
+		if (key instanceof String)
+			return stringBytes((String) key);
+		return 16;
+	}
+
+	/**
+	 * The size of a HashMap holding the given number of entries, excluding the
+	 * keys and values themselves. The table grows by doubling once it is 3/4
+	 * full, starting at 16 slots.
+	 */
+	public static long hashMapBytes(int size) {
+		long tableSlots = 16;
+		while (size > tableSlots * 3 / 4)
+			tableSlots *= 2;
+		return HASH_MAP + align(ARRAY_HEADER + tableSlots * REFERENCE)
+				+ (long) size * HASH_MAP_NODE;
+	}
+
+	/**
+	 * The size of a Counter with the given number of entries, excluding the
+	 * keys.
+	 */
+	public static long counterBytes(int size) {
+		return COUNTER + hashMapBytes(size) + (long) size * BOXED_DOUBLE;
+	}
+}
@@ -0,0 +1,294 @@
+package nlp.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small registry of named metrics (counters, gauges and latency histograms)
+ * which can be written out as JSON or in the Prometheus text exposition format.
+ * Metrics are identified by a name plus an optional list of label pairs, e.g.
+ * setGauge("lm_training_seconds", 1.5, "model", "trigram"). All methods are
+ * synchronized, so one registry can be shared between threads.
+ */
+public class MetricsRegistry {
+
+	enum Type {
+		COUNTER, GAUGE, HISTOGRAM
+	}
+
+	static class Metric {
+		final String name;
+		final Map<String, String> labels;
+		final Type type;
+		double value;
+		Histogram histogram;
+
+		Metric(String name, Map<String, String> labels, Type type) {
+			this.name = name;
+			this.labels = labels;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * A latency histogram with fixed, exponentially spaced bucket bounds (in
+	 * seconds), from one microsecond up to about a minute.
+	 */
+	public static class Histogram {
+		static final double[] BOUNDS = new double[27];
+		static {
+			double bound = 1e-6;
+			for (int i = 0; i < BOUNDS.length; i++) {
+				BOUNDS[i] = bound;
+				bound *= 2.0;
+			}
+		}
+
+		final long[] bucketCounts = new long[BOUNDS.length + 1];
+		long count = 0;
+		double sum = 0.0;
+		double max = 0.0;
+
+		/**
+		 * Records one observation, given in nanoseconds.
+		 */
+		public synchronized void recordNanos(long nanos) {
+			double seconds = nanos / 1e9;
+			int bucket = 0;
+			while (bucket < BOUNDS.length && seconds > BOUNDS[bucket])
+				bucket++;
+			bucketCounts[bucket]++;
+			count++;
+			sum += seconds;
+			if (seconds > max)
+				max = seconds;
+		}
+
+		public synchronized long getCount() {
+			return count;
+		}
+
+		public synchronized double getMean() {
+			return count == 0 ? 0.0 : sum / count;
+		}
+
+		/**
+		 * Approximates the given quantile (0 to 1) by the upper bound of the
+		 * bucket it falls in.
+		 */
+		public synchronized double getQuantile(double quantile) {
+			long target = (long) Math.ceil(quantile * count);
+			long seen = 0;
+			for (int i = 0; i < BOUNDS.length; i++) {
+				seen += bucketCounts[i];
+				if (seen >= target)
+					return Math.min(BOUNDS[i], max);
+			}
+			return max;
+		}
+	}
+
+	private final Map<String, Metric> metrics = new LinkedHashMap<String, Metric>();
+
+	private Metric ensureMetric(String name, Type type, String... labelPairs) {
+		if (labelPairs.length % 2 != 0)
+			throw new IllegalArgumentException("Labels must come in name/value pairs: " + name);
+		Map<String, String> labels = new LinkedHashMap<String, String>();
+		for (int i = 0; i < labelPairs.length; i += 2)
+			labels.put(labelPairs[i], labelPairs[i + 1]);
+		String key = name + labels;
+		Metric metric = metrics.get(key);
+		if (metric == null) {
+			metric = new Metric(name, labels, type);
+			if (type == Type.HISTOGRAM)
+				metric.histogram = new Histogram();
+			metrics.put(key, metric);
+		} else if (metric.type != type) {
+			throw new IllegalArgumentException("Metric " + key + " is a " + metric.type + ", not a " + type);
+		}
+		return metric;
+	}
+
+	/**
+	 * Adds the given amount to a monotonically increasing counter.
+	 */
+	public synchronized void incrementCounter(String name, double increment, String... labelPairs) {
+		ensureMetric(name, Type.COUNTER, labelPairs).value += increment;
+	}
+
+	/**
+	 * Sets a gauge, clobbering any previous value.
+	 */
+	public synchronized void setGauge(String name, double value, String... labelPairs) {
+		ensureMetric(name, Type.GAUGE, labelPairs).value = value;
+	}
+
+	/**
+	 * Gets the current value of a counter or gauge, or zero if it has never been
+	 * set.
+	 */
+	public synchronized double getValue(String name, String... labelPairs) {
+		Map<String, String> labels = new LinkedHashMap<String, String>();
+		for (int i = 0; i + 1 < labelPairs.length; i += 2)
+			labels.put(labelPairs[i], labelPairs[i + 1]);
+		Metric metric = metrics.get(name + labels);
+		return metric == null ? 0.0 : metric.value;
+	}
+
+	/**
+	 * Gets the histogram with the given name and labels, creating it if needed.
+	 */
+	public synchronized Histogram histogram(String name, String... labelPairs) {
+		return ensureMetric(name, Type.HISTOGRAM, labelPairs).histogram;
+	}
+
+	/**
+	 * Copies the metrics, grouping metrics of the same name together (the
+	 * Prometheus format requires that) but otherwise in insertion order.
+	 */
+	private synchronized List<Metric> snapshot() {
+		Map<String, List<Metric>> byName = new LinkedHashMap<String, List<Metric>>();
+		for (Metric metric : metrics.values()) {
+			List<Metric> group = byName.get(metric.name);
+			if (group == null) {
+				group = new ArrayList<Metric>();
+				byName.put(metric.name, group);
+			}
+			group.add(metric);
+		}
+		List<Metric> snapshot = new ArrayList<Metric>();
+		for (List<Metric> group : byName.values())
+			snapshot.addAll(group);
+		return snapshot;
+	}
+
+	private static String formatLabels(Map<String, String> labels, String extraName, String extraValue) {
+		if (labels.isEmpty() && extraName == null)
+			return "";
+		StringBuilder sb = new StringBuilder("{");
+		for (Map.Entry<String, String> label : labels.entrySet()) {
+			if (sb.length() > 1)
+				sb.append(",");
+			sb.append(label.getKey()).append("=\"").append(escape(label.getValue())).append("\"");
+		}
+		if (extraName != null) {
+			if (sb.length() > 1)
+				sb.append(",");
+			sb.append(extraName).append("=\"").append(extraValue).append("\"");
+		}
+		return sb.append("}").toString();
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Renders all metrics in the Prometheus text exposition format.
+	 */
+	public String toPrometheus() {
+		StringBuilder sb = new StringBuilder();
+		String lastName = null;
+		for (Metric metric : snapshot()) {
+			if (!metric.name.equals(lastName)) {
+				sb.append("# TYPE ").append(metric.name).append(" ")
+						.append(metric.type.name().toLowerCase()).append("\n");
+				lastName = metric.name;
+			}
+			if (metric.type != Type.HISTOGRAM) {
+				sb.append(metric.name).append(formatLabels(metric.labels, null, null))
+						.append(" ").append(metric.value).append("\n");
+				continue;
+			}
+			Histogram h = metric.histogram;
+			synchronized (h) {
+				long cumulative = 0;
+				for (int i = 0; i < Histogram.BOUNDS.length; i++) {
+					cumulative += h.bucketCounts[i];
+					sb.append(metric.name).append("_bucket")
+							.append(formatLabels(metric.labels, "le", Double.toString(Histogram.BOUNDS[i])))
+							.append(" ").append(cumulative).append("\n");
+				}
+				sb.append(metric.name).append("_bucket").append(formatLabels(metric.labels, "le", "+Inf"))
+						.append(" ").append(h.count).append("\n");
+				sb.append(metric.name).append("_sum").append(formatLabels(metric.labels, null, null))
+						.append(" ").append(h.sum).append("\n");
+				sb.append(metric.name).append("_count").append(formatLabels(metric.labels, null, null))
+						.append(" ").append(h.count).append("\n");
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Renders all metrics as a JSON array of objects. Histograms are summarised
+	 * by their count, mean, max and a few quantiles.
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder("[\n");
+		boolean first = true;
+		for (Metric metric : snapshot()) {
+			if (!first)
+				sb.append(",\n");
+			first = false;
+			sb.append("  {\"name\": \"").append(metric.name).append("\", \"type\": \"")
+					.append(metric.type.name().toLowerCase()).append("\", \"labels\": {");
+			boolean firstLabel = true;
+			for (Map.Entry<String, String> label : metric.labels.entrySet()) {
+				if (!firstLabel)
+					sb.append(", ");
+				firstLabel = false;
+				sb.append("\"").append(escape(label.getKey())).append("\": \"")
+						.append(escape(label.getValue())).append("\"");
+			}
+			sb.append("}, ");
+			if (metric.type != Type.HISTOGRAM) {
+				sb.append("\"value\": ").append(jsonNumber(metric.value));
+			} else {
+				Histogram h = metric.histogram;
+				sb.append("\"count\": ").append(h.getCount())
+						.append(", \"mean\": ").append(jsonNumber(h.getMean()))
+						.append(", \"p50\": ").append(jsonNumber(h.getQuantile(0.5)))
+						.append(", \"p90\": ").append(jsonNumber(h.getQuantile(0.9)))
+						.append(", \"p99\": ").append(jsonNumber(h.getQuantile(0.99)))
+						.append(", \"max\": ").append(jsonNumber(h.max));
+			}
+			sb.append("}");
+		}
+		return sb.append("\n]\n").toString();
+	}
+
+	private static String jsonNumber(double d) {
+		return Double.isNaN(d) || Double.isInfinite(d) ? "null" : Double.toString(d);
+	}
+
+	/**
+	 * Writes the metrics to a local file, as Prometheus text if the file name
+	 * ends in ".prom" and as JSON otherwise.
+	 */
+	public void writeTo(String fileName) throws IOException {
+		String contents = fileName.endsWith(".prom") ? toPrometheus() : toJson();
+		PrintWriter writer = new PrintWriter(new File(fileName), "UTF-8");
+		try {
+			writer.print(contents);
+		} finally {
+			writer.close();
+		}
+	}
+
+	public static void main(String[] args) {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.setGauge("lm_training_seconds", 1.5, "model", "trigram");
+		registry.incrementCounter("lm_tokens_total", 1000, "model", "trigram");
+		Histogram h = registry.histogram("lm_sentence_seconds", "model", "trigram");
+		for (int i = 1; i <= 100; i++)
+			h.recordNanos(i * 1000L);
+		System.out.println(registry.toJson());
+		System.out.println(registry.toPrometheus());
+	}
+}